@@ -0,0 +1,20 @@
+package ru.crpt.api.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Запуск бенчмарков с профилировщиком GC, чтобы вместе с пропускной способностью
+ * видеть скорость выделения памяти (gc.alloc.rate.norm) на операцию.
+ * Принимает те же аргументы командной строки, что и стандартный org.openjdk.jmh.Main.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,76 @@
+package ru.crpt.api.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.crpt.api.CrptApi;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Полный путь createDocument: ограничение запросов, сериализация и HTTP-запрос к локальной заглушке.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class CreateDocumentBenchmark {
+    @Param({"1", "100"})
+    private int products;
+
+    private HttpStub stub;
+    private CrptApi crptApi;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stub = new HttpStub();
+        // без окна запоминания: иначе повторные отправки документа получают готовый результат без запроса
+        crptApi = new CrptApi(stub.apiAddress(), new CrptApi.ApacheHttpClient(),
+                new CrptApi.Bucket4jRateLimiter(Duration.ofMinutes(1), Integer.MAX_VALUE),
+                CrptApi.Metrics.NOOP, ForkJoinPool.commonPool(), Duration.ZERO);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        crptApi.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public void createDocument(Submitter submitter) {
+        crptApi.createDocument(submitter.document, "signature");
+    }
+
+    /**
+     * Свой документ у каждого потока: одновременные отправки с одним doc_id объединяются в один запрос.
+     */
+    @State(Scope.Thread)
+    public static class Submitter {
+        private static final AtomicInteger IDS = new AtomicInteger();
+
+        private CrptApi.Document document;
+
+        @Setup(Level.Trial)
+        public void setUp(CreateDocumentBenchmark benchmark) {
+            document = Documents.withProducts(benchmark.products, "doc-" + IDS.incrementAndGet());
+        }
+    }
+}
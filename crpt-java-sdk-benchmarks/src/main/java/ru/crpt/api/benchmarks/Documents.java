@@ -0,0 +1,60 @@
+package ru.crpt.api.benchmarks;
+
+import ru.crpt.api.CrptApi;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Тестовые документы для бенчмарков.
+ */
+final class Documents {
+    private static final LocalDate DATE = LocalDate.parse("2020-01-23");
+
+    private Documents() {
+    }
+
+    static CrptApi.Document withProducts(int productCount) {
+        return withProducts(productCount, "doc-" + productCount);
+    }
+
+    /**
+     * @param docId идентификатор документа; одновременные отправки с одинаковым идентификатором объединяются.
+     */
+    static CrptApi.Document withProducts(int productCount, String docId) {
+        List<CrptApi.Product> products = new ArrayList<>(productCount);
+        for (int i = 0; i < productCount; i++) {
+            products.add(product(i));
+        }
+        return CrptApi.Document.builder()
+                .description(new CrptApi.Description("7700000000"))
+                .docId(docId)
+                .docStatus("NEW")
+                .docType("LP_INTRODUCE_GOODS")
+                .importRequest(true)
+                .ownerInn("7700000000")
+                .participantInn("7700000000")
+                .producerInn("7700000000")
+                .productionDate(DATE)
+                .productionType("OWN_PRODUCTION")
+                .products(products)
+                .regDate(DATE)
+                .regNumber("reg-" + productCount)
+                .build();
+    }
+
+    static CrptApi.Product product(int index) {
+        return CrptApi.Product.builder()
+                .certificateDocument("CONFORMITY_CERTIFICATE")
+                .certificateDocumentDate(DATE)
+                .certificateDocumentNumber("RU-0000")
+                .ownerInn("7700000000")
+                .producerInn("7700000000")
+                .productionDate(DATE)
+                .tnvedCode("6403990000")
+                .uitCode(String.format("010460000000000021%08d", index))
+                .uituCode(null)
+                .build();
+    }
+}
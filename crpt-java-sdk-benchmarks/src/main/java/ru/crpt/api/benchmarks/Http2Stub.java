@@ -0,0 +1,77 @@
+package ru.crpt.api.benchmarks;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.Callback;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Заглушка API, принимающая на одном порту HTTP/1.1 и HTTP/2 без TLS (h2c). Считает открытые соединения,
+ * чтобы сравнивать транспорты не только по задержке, но и по количеству соединений.
+ */
+final class Http2Stub implements AutoCloseable {
+    private static final byte[] RESPONSE = "{\"value\":\"b917dfb0-523d-41e0-9e64-e8bf0052c5bd\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Server server = new Server();
+    private final ServerConnector connector;
+    private final ConnectionStatistics connections = new ConnectionStatistics();
+
+    Http2Stub() throws Exception {
+        HttpConfiguration configuration = new HttpConfiguration();
+        connector = new ServerConnector(server, new HttpConnectionFactory(configuration),
+                new HTTP2CServerConnectionFactory(configuration));
+        connector.setHost("127.0.0.1");
+        connector.addBean(connections);
+        server.addConnector(connector);
+        server.setHandler(new Handler.Abstract() {
+            @Override
+            public boolean handle(Request request, Response response, Callback callback) {
+                Content.Source.consumeAll(request, Callback.from(() -> {
+                    response.getHeaders().put(HttpHeader.CONTENT_TYPE, "application/json");
+                    response.write(true, ByteBuffer.wrap(RESPONSE), callback);
+                }, callback::failed));
+                return true;
+            }
+        });
+        server.start();
+    }
+
+    String apiAddress() {
+        return "http://127.0.0.1:" + connector.getLocalPort() + "/api/v3";
+    }
+
+    /**
+     * @return соединения, открытые с момента запуска.
+     */
+    long connectionsOpened() {
+        return connections.getConnectionsTotal();
+    }
+
+    /**
+     * @return наибольшее количество одновременно открытых соединений.
+     */
+    long maxOpenConnections() {
+        return connections.getConnectionsMax();
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.stop();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ru.crpt.api.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Встроенная заглушка API: вычитывает тело запроса и отвечает идентификатором документа.
+ */
+final class HttpStub implements AutoCloseable {
+    private static final byte[] RESPONSE = "{\"value\":\"b917dfb0-523d-41e0-9e64-e8bf0052c5bd\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    HttpStub() throws IOException {
+        // без этого ответы заглушки задерживаются алгоритмом Нейгла и замеры упираются в таймер ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESPONSE);
+            }
+        });
+        server.start();
+    }
+
+    String apiAddress() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/api/v3";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
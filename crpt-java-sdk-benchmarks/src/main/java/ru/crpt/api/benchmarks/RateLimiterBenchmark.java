@@ -0,0 +1,72 @@
+package ru.crpt.api.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.crpt.api.CrptApi;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Накладные расходы на получение разрешения при разном числе конкурирующих потоков.
+ * Лимит выбран заведомо недостижимым, поэтому измеряется сама синхронизация, а не ожидание.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+    private CrptApi.RateLimiter rateLimiter;
+
+    @Setup
+    public void setUp() {
+        rateLimiter = new CrptApi.Bucket4jRateLimiter(Duration.ofMinutes(1), Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void blockingConsume1() throws InterruptedException {
+        rateLimiter.blockingConsume();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void blockingConsume4() throws InterruptedException {
+        rateLimiter.blockingConsume();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void blockingConsume16() throws InterruptedException {
+        rateLimiter.blockingConsume();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void blockingConsume64() throws InterruptedException {
+        rateLimiter.blockingConsume();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void consumeAsync1() {
+        rateLimiter.consumeAsync().join();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void consumeAsync64() {
+        rateLimiter.consumeAsync().join();
+    }
+}
@@ -0,0 +1,58 @@
+package ru.crpt.api.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.crpt.api.CrptApi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость сериализации документа в JSON в зависимости от количества товаров.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    @Param({"1", "100", "10000"})
+    private int products;
+
+    private final CrptApi.JsonSerializer json = new CrptApi.JacksonSerializer();
+    private CrptApi.Document document;
+
+    @Setup
+    public void setUp() {
+        document = Documents.withProducts(products);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return json.serialize(document);
+    }
+
+    /**
+     * Потоковая запись тела запроса: выделение памяти на операцию не должно расти вместе с документом
+     * так же быстро, как у {@link #serialize()}.
+     */
+    @Benchmark
+    public void streamDocumentBody() throws IOException {
+        CrptApi.RequestBody body = json.documentBody(document);
+        OutputStream out = OutputStream.nullOutputStream();
+        while (body.writeNext(out)) {
+            // тело записывается частями до конца
+        }
+    }
+}
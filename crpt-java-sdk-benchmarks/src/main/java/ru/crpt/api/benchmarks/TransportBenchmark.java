@@ -0,0 +1,130 @@
+package ru.crpt.api.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.runner.IterationType;
+import ru.crpt.api.CrptApi;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Задержка createDocument при 32 одновременных вызовах через HTTP/1.1 ({@link CrptApi.ApacheHttpClient})
+ * и HTTP/2 ({@link CrptApi.JdkHttpClient}) к локальной заглушке. Режим SampleTime выводит перцентили p50 и p99,
+ * а вспомогательные счётчики {@link Connections} — сколько соединений открыл транспорт.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+    @Param({"apache", "jdk"})
+    private String transport;
+
+    private Http2Stub stub;
+    private CrptApi crptApi;
+    private final AtomicInteger connectionReporters = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stub = new Http2Stub();
+        CrptApi.HttpClient httpClient;
+        if ("jdk".equals(transport)) {
+            httpClient = new CrptApi.JdkHttpClient();
+            // без TLS переход на HTTP/2 согласуется запросом без тела, затем соединение используется всеми запросами
+            httpClient.get(stub.apiAddress(), Map.of());
+        } else {
+            httpClient = new CrptApi.ApacheHttpClient();
+        }
+        crptApi = new CrptApi(stub.apiAddress(), httpClient,
+                new CrptApi.Bucket4jRateLimiter(Duration.ofMinutes(1), Integer.MAX_VALUE),
+                CrptApi.Metrics.NOOP, ForkJoinPool.commonPool(), Duration.ZERO);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        crptApi.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public CrptApi.DocumentResult createDocument(Submitter submitter, Connections connections) {
+        return crptApi.createDocument(submitter.document, "signature");
+    }
+
+    /**
+     * Свой документ у каждого потока: одновременные отправки с одним doc_id объединяются в один запрос.
+     */
+    @State(Scope.Thread)
+    public static class Submitter {
+        private static final AtomicInteger IDS = new AtomicInteger();
+
+        private CrptApi.Document document;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            document = Documents.withProducts(10, "transport-" + IDS.incrementAndGet());
+        }
+    }
+
+    /**
+     * Соединения заглушки с начала прогона. JMH суммирует счётчики по потокам и итерациям,
+     * поэтому их заполняет только один поток в последней измерительной итерации.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Connections {
+        /**
+         * Соединения, открытые транспортом.
+         */
+        public long connectionsOpened;
+        /**
+         * Наибольшее количество одновременно открытых соединений.
+         */
+        public long maxOpenConnections;
+
+        private boolean reporter;
+        private int measurements;
+        private boolean lastMeasurement;
+
+        @Setup(Level.Trial)
+        public void setUp(TransportBenchmark benchmark) {
+            reporter = benchmark.connectionReporters.getAndIncrement() == 0;
+        }
+
+        @Setup(Level.Iteration)
+        public void countIteration(IterationParams iteration) {
+            if (iteration.getType() == IterationType.MEASUREMENT) {
+                lastMeasurement = ++measurements == iteration.getCount();
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void record(TransportBenchmark benchmark) {
+            if (reporter && lastMeasurement) {
+                connectionsOpened = benchmark.stub.connectionsOpened();
+                maxOpenConnections = benchmark.stub.maxOpenConnections();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.crpt.api.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.crpt.api.CrptApi;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 10 000 одновременных отправителей, каждый вызывает блокирующий createDocument.
+ * Виртуальные потоки выполняются на фиксированном пуле из четырёх потоков-носителей; для сравнения
+ * те же документы отправляет пул платформенных потоков обычного для серверов приложений размера.
+ * Закрепление виртуальных потоков за носителями выводится в лог через jdk.tracePinnedThreads.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Djdk.virtualThreadScheduler.parallelism=4",
+        "-Djdk.virtualThreadScheduler.maxPoolSize=4",
+        "-Djdk.tracePinnedThreads=short"})
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+    private static final int SUBMITTERS = 10_000;
+    private static final int PLATFORM_THREADS = 200;
+
+    @Param({"virtual", "platform"})
+    private String threads;
+
+    private HttpStub stub;
+    private CrptApi crptApi;
+    private List<CrptApi.Document> documents;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stub = new HttpStub();
+        // без окна запоминания: иначе повторные отправки документа получают готовый результат без запроса
+        crptApi = new CrptApi(stub.apiAddress(), new CrptApi.ApacheHttpClient(),
+                new CrptApi.Bucket4jRateLimiter(Duration.ofMinutes(1), Integer.MAX_VALUE),
+                CrptApi.Metrics.NOOP, ForkJoinPool.commonPool(), Duration.ZERO);
+        documents = new ArrayList<>(SUBMITTERS);
+        for (int i = 0; i < SUBMITTERS; i++) {
+            documents.add(Documents.withProducts(1, "doc-" + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        crptApi.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public void submit() {
+        try (ExecutorService submitters = "virtual".equals(threads)
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(PLATFORM_THREADS)) {
+            for (CrptApi.Document document : documents) {
+                submitters.execute(() -> crptApi.createDocument(document, "signature"));
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ru.crpt.api.micrometer;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import ru.crpt.api.CrptApi;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Метрики {@link CrptApi} в реестре Micrometer.
+ * Таймеры и гистограммы создаются заранее или один раз на код ответа, поэтому запись на каждый запрос
+ * не выполняет поиска в реестре и не выделяет память.
+ */
+public class MicrometerMetrics implements CrptApi.Metrics {
+    private static final int MAX_STATUS_CODE = 599;
+
+    private final MeterRegistry registry;
+    private final Tags tags;
+    private final Map<CrptApi.Priority, Timer> limiterWait = new EnumMap<>(CrptApi.Priority.class);
+    private final Timer serialization;
+    private final DistributionSummary payload;
+    private final AtomicReferenceArray<Timer> httpRequests = new AtomicReferenceArray<>(MAX_STATUS_CODE + 1);
+
+    public MicrometerMetrics(MeterRegistry registry) {
+        this(registry, Tags.empty());
+    }
+
+    /**
+     * @param registry реестр метрик.
+     * @param tags     общие теги, например, для различения нескольких экземпляров {@link CrptApi}.
+     */
+    public MicrometerMetrics(MeterRegistry registry, Iterable<Tag> tags) {
+        this.registry = registry;
+        this.tags = Tags.of(tags);
+        for (CrptApi.Priority priority : CrptApi.Priority.values()) {
+            limiterWait.put(priority, Timer.builder("crpt.limiter.wait")
+                    .description("Ожидание разрешения ограничения запросов")
+                    .tags(this.tags)
+                    .tag("priority", priority.name())
+                    .publishPercentileHistogram()
+                    .register(registry));
+        }
+        serialization = Timer.builder("crpt.serialization")
+                .description("Сериализация документа в тело запроса")
+                .tags(this.tags)
+                .publishPercentileHistogram()
+                .register(registry);
+        payload = DistributionSummary.builder("crpt.serialization.payload")
+                .description("Размер тела запроса")
+                .baseUnit("bytes")
+                .tags(this.tags)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    @Override
+    public void recordLimiterWait(CrptApi.Priority priority, long nanos) {
+        limiterWait.get(priority).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordSerialization(long nanos, long bytes) {
+        serialization.record(nanos, TimeUnit.NANOSECONDS);
+        payload.record(bytes);
+    }
+
+    @Override
+    public void recordHttpRequest(int statusCode, long nanos) {
+        int index = statusCode < 0 || statusCode > MAX_STATUS_CODE ? 0 : statusCode;
+        Timer timer = httpRequests.get(index);
+        if (timer == null) {
+            timer = Timer.builder("crpt.http.requests")
+                    .description("HTTP-запросы создания документа")
+                    .tags(this.tags)
+                    .tag("status", index == 0 ? "IO_ERROR" : Integer.toString(index))
+                    .publishPercentileHistogram()
+                    .register(registry);
+            httpRequests.compareAndSet(index, null, timer);
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void bindGauges(Supplier<CrptApi.RateLimiterStats> rateLimiter,
+                           Supplier<CrptApi.ConnectionPoolStats> connectionPool) {
+        gauge("crpt.limiter.waiting", "Запросы, ожидающие разрешения", rateLimiter,
+                stats -> stats.getWaiting());
+        gauge("crpt.limiter.tokens.available", "Доступные разрешения", rateLimiter,
+                stats -> stats.getAvailableTokens());
+        gauge("crpt.limiter.utilization", "Доля израсходованного лимита запросов", rateLimiter,
+                CrptApi.RateLimiterStats::getUtilization);
+        gauge("crpt.pool.leased", "Соединения, занятые запросами", connectionPool,
+                stats -> stats.getLeased());
+        gauge("crpt.pool.pending", "Запросы, ожидающие свободного соединения", connectionPool,
+                stats -> supported(stats.getPending()));
+        gauge("crpt.pool.available", "Свободные keep-alive соединения", connectionPool,
+                stats -> supported(stats.getAvailable()));
+        gauge("crpt.pool.saturation", "Доля занятых соединений пула", connectionPool,
+                stats -> stats.getMax() == CrptApi.ConnectionPoolStats.UNSUPPORTED ? Double.NaN
+                        : stats.getMax() == 0 ? 0 : (double) stats.getLeased() / stats.getMax());
+    }
+
+    /**
+     * Показатели размыкателя цепи: состояние (0 — замкнута, 1 — разомкнута, 2 — пробные запросы), доли ошибок
+     * и медленных запросов в окне, отклонённые запросы и переходы между состояниями.
+     *
+     * @param circuitBreaker размыкатель цепи транспорта.
+     */
+    public void bindCircuitBreaker(CrptApi.CircuitBreakerHttpClient circuitBreaker) {
+        Supplier<CrptApi.CircuitBreakerStats> stats = circuitBreaker::getStats;
+        gauge("crpt.circuit.state", "Состояние размыкателя цепи", stats, s -> s.getState().ordinal());
+        gauge("crpt.circuit.failure.rate", "Доля ошибок в окне размыкателя цепи", stats,
+                CrptApi.CircuitBreakerStats::getFailureRate);
+        gauge("crpt.circuit.slow.rate", "Доля медленных запросов в окне размыкателя цепи", stats,
+                CrptApi.CircuitBreakerStats::getSlowCallRate);
+        FunctionCounter.builder("crpt.circuit.not.permitted", circuitBreaker,
+                        breaker -> breaker.getStats().getNotPermittedCalls())
+                .description("Запросы, отклонённые разомкнутой цепью")
+                .tags(tags)
+                .register(registry);
+        circuitBreaker.onStateChange((from, to) -> registry.counter("crpt.circuit.transitions",
+                tags.and("from", from.name(), "to", to.name())).increment());
+    }
+
+    private <T> void gauge(String name, String description, Supplier<T> source, ToDoubleFunction<T> value) {
+        // реестр хранит слабую ссылку на источник, а поставщик из CrptApi больше нигде не удерживается
+        Gauge.builder(name, source, supplier -> value.applyAsDouble(supplier.get()))
+                .description(description)
+                .tags(tags)
+                .strongReference(true)
+                .register(registry);
+    }
+
+    /**
+     * Показатель, который транспорт не сообщает, публикуется как отсутствие данных.
+     */
+    private static double supported(int value) {
+        return value == CrptApi.ConnectionPoolStats.UNSUPPORTED ? Double.NaN : value;
+    }
+}
@@ -1,33 +1,161 @@
 package ru.crpt.api;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategies;
+import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.annotation.JsonNaming;
 import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import io.github.bucket4j.Bandwidth;
 import io.github.bucket4j.Bucket;
+import io.github.bucket4j.BucketConfiguration;
 import io.github.bucket4j.Refill;
+import io.github.bucket4j.TokensInheritanceStrategy;
+import io.github.bucket4j.distributed.proxy.ClientSideConfig;
+import io.github.bucket4j.distributed.proxy.ProxyManager;
+import io.github.bucket4j.distributed.proxy.generic.pessimistic_locking.AbstractLockBasedProxyManager;
+import io.github.bucket4j.distributed.proxy.generic.pessimistic_locking.LockBasedTransaction;
+import io.github.bucket4j.distributed.remote.RemoteBucketState;
 import lombok.*;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
-public class CrptApi {
+import javax.net.ssl.SSLContext;
+
+public class CrptApi implements Closeable {
     @Getter
     private static final String API_VERSION = "3";
     @Getter
@@ -35,137 +163,4883 @@ public class CrptApi {
     @Getter
     private static final String API_ADDRESS = "https://" + API_HOST + "/api/v" + API_VERSION;
     private final JsonSerializer json = new JacksonSerializer();
-    private final HttpClient httpClient = new ApacheHttpClient();
+    private final String apiAddress;
+    private final HttpClient httpClient;
     private final RateLimiter rateLimiter;
+    private final Metrics metrics;
+    private final Executor executor;
+    private final SingleFlight submissions;
 
     /**
      * @param timeLimit    интервал времени.
      * @param requestLimit максимальное количество запросов в заданный интервал времени.
      */
     public CrptApi(Duration timeLimit, int requestLimit) {
-        rateLimiter = new Bucket4jRateLimiter(timeLimit, requestLimit);
+        this(new ApacheHttpClient(), new Bucket4jRateLimiter(timeLimit, requestLimit));
+    }
+
+    /**
+     * @param httpClient  транспорт для запросов к API.
+     * @param rateLimiter ограничение количества запросов к API.
+     */
+    public CrptApi(HttpClient httpClient, RateLimiter rateLimiter) {
+        this(API_ADDRESS, httpClient, rateLimiter);
+    }
+
+    /**
+     * @param apiAddress  базовый адрес API, например, тестового контура.
+     * @param httpClient  транспорт для запросов к API.
+     * @param rateLimiter ограничение количества запросов к API.
+     */
+    public CrptApi(String apiAddress, HttpClient httpClient, RateLimiter rateLimiter) {
+        this(apiAddress, httpClient, rateLimiter, Metrics.NOOP);
+    }
+
+    /**
+     * @param apiAddress  базовый адрес API, например, тестового контура.
+     * @param httpClient  транспорт для запросов к API.
+     * @param rateLimiter ограничение количества запросов к API.
+     * @param metrics     получатель метрик этапов создания документа.
+     */
+    public CrptApi(String apiAddress, HttpClient httpClient, RateLimiter rateLimiter, Metrics metrics) {
+        this(apiAddress, httpClient, rateLimiter, metrics, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param apiAddress  базовый адрес API, например, тестового контура.
+     * @param httpClient  транспорт для запросов к API.
+     * @param rateLimiter ограничение количества запросов к API.
+     * @param metrics     получатель метрик этапов создания документа.
+     * @param executor    исполнитель подготовки документов: подписи и сериализации в {@link #createDocuments}
+     *                    и сериализации перед {@link SigningPool}, например, {@link #virtualThreadExecutor()},
+     *                    если подпись блокирует поток.
+     */
+    public CrptApi(String apiAddress, HttpClient httpClient, RateLimiter rateLimiter, Metrics metrics, Executor executor) {
+        this(apiAddress, httpClient, rateLimiter, metrics, executor, Duration.ZERO);
+    }
+
+    /**
+     * @param apiAddress          базовый адрес API, например, тестового контура.
+     * @param httpClient          транспорт для запросов к API.
+     * @param rateLimiter         ограничение количества запросов к API.
+     * @param metrics             получатель метрик этапов создания документа.
+     * @param executor            исполнитель подготовки документов.
+     * @param deduplicationWindow сколько после успешного создания документа повторные отправки того же документа
+     *                            с той же подписью получают готовый результат вместо нового запроса;
+     *                            {@link Duration#ZERO}, как в остальных конструкторах, отключает запоминание,
+     *                            оставляя объединение только одновременных отправок.
+     */
+    public CrptApi(String apiAddress, HttpClient httpClient, RateLimiter rateLimiter, Metrics metrics, Executor executor,
+                   Duration deduplicationWindow) {
+        this.apiAddress = apiAddress;
+        this.httpClient = httpClient;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.submissions = new SingleFlight(deduplicationWindow);
+        metrics.bindGauges(rateLimiter::getStats, httpClient::getPoolStats);
+    }
+
+    /**
+     * Создание документа через API Честный знак.
+     * Поток ожидает лимит запросов и ответ без удержания мониторов, поэтому виртуальный поток
+     * на это время освобождает поток-носитель.
+     *
+     * @param document  данные для документа.
+     * @param signature подпись для документа.
+     * @return результат создания документа.
+     */
+    public DocumentResult createDocument(Document document, String signature) {
+        return createDocument(document, signature, Priority.NORMAL);
+    }
+
+    /**
+     * Создание документа через API Честный знак с заданным приоритетом ожидания лимита запросов.
+     *
+     * @param document  данные для документа.
+     * @param signature подпись для документа.
+     * @param priority  приоритет документа.
+     * @return результат создания документа.
+     */
+    public DocumentResult createDocument(Document document, String signature, Priority priority) {
+        return await(createDocumentAsync(document, signature, priority));
+    }
+
+    /**
+     * Создание документа, товары которого читаются из источника по мере отправки, например, из курсора базы данных.
+     * В памяти находятся только несколько очередных частей тела запроса, сколько бы товаров ни было в документе.
+     *
+     * @param document  данные для документа; поле products не используется.
+     * @param products  товары документа.
+     * @param signature подпись для документа.
+     * @return результат создания документа.
+     */
+    public DocumentResult createDocument(Document document, Iterator<Product> products, String signature) {
+        return await(createDocumentAsync(document, products, signature));
+    }
+
+    /**
+     * Создание документа с товарами из потока. Поток закрывается после отправки.
+     *
+     * @param document  данные для документа; поле products не используется.
+     * @param products  товары документа.
+     * @param signature подпись для документа.
+     * @return результат создания документа.
+     */
+    public DocumentResult createDocument(Document document, Stream<Product> products, String signature) {
+        try (products) {
+            return createDocument(document, products.iterator(), signature);
+        }
+    }
+
+    /**
+     * Создание документа с товарами из {@link Spliterator}.
+     *
+     * @param document  данные для документа; поле products не используется.
+     * @param products  товары документа.
+     * @param signature подпись для документа.
+     * @return результат создания документа.
+     */
+    public DocumentResult createDocument(Document document, Spliterator<Product> products, String signature) {
+        return createDocument(document, Spliterators.iterator(products), signature);
+    }
+
+    /**
+     * Асинхронное создание документа через API Честный знак.
+     * Ожидание лимита запросов и HTTP-запрос не блокируют вызывающий поток.
+     *
+     * @param document  данные для документа.
+     * @param signature подпись для документа.
+     * @return результат создания документа, который будет получен после выполнения запроса.
+     */
+    public CompletableFuture<DocumentResult> createDocumentAsync(Document document, String signature) {
+        return createDocumentAsync(document, signature, Priority.NORMAL);
+    }
+
+    /**
+     * Асинхронное создание документа через API Честный знак с заданным приоритетом ожидания лимита запросов.
+     *
+     * @param document  данные для документа.
+     * @param signature подпись для документа.
+     * @param priority  приоритет документа.
+     * @return результат создания документа, который будет получен после выполнения запроса.
+     */
+    public CompletableFuture<DocumentResult> createDocumentAsync(Document document, String signature, Priority priority) {
+        PreparedDocument prepared = prepare(document, signature);
+        return submit(prepared.getKey(), prepared::getBody, signature, priority);
+    }
+
+    /**
+     * Асинхронное создание документа, товары которого читаются из источника по мере отправки.
+     * Источник читается в исполнителе подготовки документов в ограниченный буфер, а транспорт только забирает
+     * готовые части, поэтому медленный источник не задерживает потоки ввода-вывода транспорта. Тело запроса
+     * нельзя повторить, поэтому повторные попытки {@link RetryingHttpClient} к такому документу не применяются.
+     *
+     * @param document  данные для документа; поле products не используется.
+     * @param products  товары документа.
+     * @param signature подпись для документа.
+     * @return результат создания документа, который будет получен после выполнения запроса.
+     */
+    public CompletableFuture<DocumentResult> createDocumentAsync(Document document, Iterator<Product> products, String signature) {
+        // товары из источника не входят в ключ, поэтому объединяются только отправки с doc_id
+        Object key = document.getDocId() == null ? null : new SubmissionKey(document.getDocId(), null, signature);
+        return submit(key, () -> new PrefetchedBody(
+                new MeasuredBody(json.documentBody(document, products), metrics), executor), signature, Priority.NORMAL);
+    }
+
+    /**
+     * Создание документа с подписью тела запроса в пуле подписи.
+     * Документ сериализуется в вызывающем потоке, и при заполненной очереди пула подписи поток ждёт свободного
+     * места, а не получает {@link RejectedExecutionException}, как асинхронные методы. Разрешение лимита
+     * запрашивается, когда документ поставлен в очередь, и подпись выполняется, пока запрос ждёт лимита.
+     *
+     * @param document данные для документа.
+     * @param signer   пул подписи.
+     * @return результат создания документа.
+     * @throws RejectedExecutionException если пул подписи закрыт.
+     */
+    public DocumentResult createDocument(Document document, SigningPool signer) {
+        if (!httpClient.isAcceptingRequests()) {
+            return await(rejected());
+        }
+        byte[] content = serialize(document);
+        CompletableFuture<PreparedDocument> prepared = signed(document, content, signer.submit(content));
+        return await(dispatch(prepared, rateLimiter.consumeAsync(Priority.NORMAL), System.nanoTime(), Priority.NORMAL));
+    }
+
+    /**
+     * Асинхронное создание документа с подписью тела запроса в пуле подписи.
+     * Если очередь пула подписи заполнена, результат сразу завершается {@link RejectedExecutionException}.
+     *
+     * @param document данные для документа.
+     * @param signer   пул подписи.
+     * @return результат создания документа, который будет получен после выполнения запроса.
+     */
+    public CompletableFuture<DocumentResult> createDocumentAsync(Document document, SigningPool signer) {
+        return createDocumentAsync(document, signer, Priority.NORMAL);
+    }
+
+    /**
+     * Асинхронное создание документа с подписью тела запроса в пуле подписи и заданным приоритетом.
+     * Документ сериализуется один раз, и подписываются ровно те байты, которые будут отправлены. Разрешение
+     * запрашивается одновременно с подписью, поэтому подпись выполняется, пока запрос ждёт лимита. Разрешение
+     * документа, который не был отправлен из-за ошибки подписи или объединения с такой же отправкой по doc_id
+     * и подписи, возвращается {@link RateLimiter#release}. Если очередь пула подписи заполнена, результат
+     * завершается {@link RejectedExecutionException}, и вызывающий код решает, повторить ли отправку позже.
+     *
+     * @param document данные для документа.
+     * @param signer   пул подписи.
+     * @param priority приоритет документа.
+     * @return результат создания документа, который будет получен после выполнения запроса.
+     */
+    public CompletableFuture<DocumentResult> createDocumentAsync(Document document, SigningPool signer, Priority priority) {
+        if (!httpClient.isAcceptingRequests()) {
+            return rejected();
+        }
+        long start = System.nanoTime();
+        CompletableFuture<PreparedDocument> prepared = CompletableFuture.supplyAsync(() -> serialize(document), executor)
+                .thenCompose(content -> signed(document, content, signer.signAsync(content)));
+        return dispatch(prepared, rateLimiter.consumeAsync(priority), start, priority);
+    }
+
+    /**
+     * Пакетное создание документов через API Честный знак.
+     * Разрешения на все запросы резервируются сразу, а каждый следующий документ подписывается,
+     * пока предыдущие уже отправляются, поэтому скорость пакета ограничена только лимитом запросов.
+     * Разрешение документа, который не был отправлен из-за ошибки подписи или объединения с такой же отправкой,
+     * возвращается {@link RateLimiter#release}.
+     *
+     * @param documents данные для документов.
+     * @param signer    функция получения подписи для документа.
+     * @return результаты создания документов в порядке документов во входном списке.
+     */
+    public List<CompletableFuture<DocumentResult>> createDocuments(List<Document> documents, Function<Document, String> signer) {
+        if (!httpClient.isAcceptingRequests()) {
+            List<CompletableFuture<DocumentResult>> rejected = new ArrayList<>(documents.size());
+            for (int i = 0; i < documents.size(); i++) {
+                rejected.add(rejected());
+            }
+            return rejected;
+        }
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> permits = rateLimiter.reserveAsync(documents.size());
+        List<CompletableFuture<DocumentResult>> responses = new ArrayList<>(documents.size());
+        CompletableFuture<Void> previousPermit = CompletableFuture.completedFuture(null);
+        for (int i = 0; i < documents.size(); i++) {
+            Document document = documents.get(i);
+            CompletableFuture<Void> permit = permits.get(i);
+            responses.add(dispatch(previousPermit.thenApplyAsync(ignored -> prepare(document, signer.apply(document)), executor),
+                    permit, start, Priority.NORMAL));
+            // отменённое при возврате разрешение не останавливает подготовку следующего документа
+            previousPermit = permit.handle((ignored, e) -> null);
+        }
+        return responses;
+    }
+
+    /**
+     * Создание документа, который может превышать ограничения API на размер запроса и количество товаров.
+     * Такой документ делится на части с теми же полями, каждая часть подписывается отдельно,
+     * и части отправляются одновременно в пределах лимита запросов.
+     *
+     * @param document данные для документа.
+     * @param signer   функция получения подписи для документа или его части.
+     * @param splitter разделение документа по ограничениям API.
+     * @return результаты отправки всех частей, когда они будут получены.
+     */
+    public CompletableFuture<SplitResult> createDocumentSplit(Document document, Function<Document, String> signer,
+                                                              DocumentSplitter splitter) {
+        List<Document> parts = splitter.split(document);
+        List<CompletableFuture<DocumentResult>> responses = createDocuments(parts, signer);
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).handle((ignored, e) -> {
+            List<SplitPart> results = new ArrayList<>(parts.size());
+            for (int i = 0; i < parts.size(); i++) {
+                CompletableFuture<DocumentResult> response = responses.get(i);
+                Throwable error = response.handle((r, cause) -> cause).join();
+                results.add(new SplitPart(parts.get(i), error == null ? response.join() : null,
+                        error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+            }
+            return new SplitResult(results);
+        });
+    }
+
+    /**
+     * Состояние пула соединений транспорта.
+     */
+    public ConnectionPoolStats getConnectionPoolStats() {
+        return httpClient.getPoolStats();
+    }
+
+    /**
+     * Состояние ограничения запросов.
+     */
+    public RateLimiterStats getRateLimiterStats() {
+        return rateLimiter.getStats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    /**
+     * Тело запроса и ключ объединения одинаковых отправок. Документ без doc_id сериализуется сразу, чтобы ключом
+     * стал отпечаток тела, и отправляются те же байты.
+     */
+    private PreparedDocument prepare(Document document, String signature) {
+        if (document.getDocId() != null) {
+            return new PreparedDocument(documentBody(document), signature,
+                    new SubmissionKey(document.getDocId(), null, signature));
+        }
+        byte[] content = serialize(document);
+        return new PreparedDocument(new ByteArrayBody(content), signature, new SubmissionKey(null, content, signature));
+    }
+
+    private static CompletableFuture<PreparedDocument> signed(Document document, byte[] content,
+                                                              CompletableFuture<String> signature) {
+        return signature.thenApply(value -> new PreparedDocument(new ByteArrayBody(content), value,
+                new SubmissionKey(document.getDocId(), content, value)));
+    }
+
+    /**
+     * Отправка подготовленного документа по уже запрошенному разрешению. Разрешение возвращается, если документ
+     * не был отправлен: подготовка завершилась ошибкой или отправка объединена с такой же.
+     */
+    private CompletableFuture<DocumentResult> dispatch(CompletableFuture<PreparedDocument> prepared,
+                                                       CompletableFuture<Void> permit, long start, Priority priority) {
+        CompletableFuture<Void> waited = permit.thenRun(() -> metrics.recordLimiterWait(priority, System.nanoTime() - start));
+        AtomicBoolean dispatched = new AtomicBoolean();
+        return prepared
+                .thenCompose(document -> submissions.execute(document.getKey(), () -> {
+                    dispatched.set(true);
+                    return waited
+                            .thenCompose(ignored -> send(document.getBody(), document.getSignature(), priority))
+                            .thenApply(json::documentResult);
+                }))
+                .whenComplete((result, e) -> {
+                    if (!dispatched.get()) {
+                        rateLimiter.release(permit);
+                    }
+                });
+    }
+
+    private static <T> CompletableFuture<T> rejected() {
+        return CompletableFuture.failedFuture(new CircuitBreakerOpenException("Транспорт не принимает запросы"));
+    }
+
+    private RequestBody documentBody(Document document) {
+        return new MeasuredBody(json.documentBody(document), metrics);
+    }
+
+    private byte[] serialize(Document document) {
+        long start = System.nanoTime();
+        byte[] content = json.serialize(document).getBytes(StandardCharsets.UTF_8);
+        metrics.recordSerialization(System.nanoTime() - start, content.length);
+        return content;
+    }
+
+    private CompletableFuture<DocumentResult> submit(Object key, Supplier<RequestBody> body, String signature,
+                                                     Priority priority) {
+        long start = System.nanoTime();
+        return submissions.execute(key, () -> {
+            if (!httpClient.isAcceptingRequests()) {
+                return rejected();
+            }
+            return rateLimiter.consumeAsync(priority)
+                    .thenCompose(ignored -> {
+                        metrics.recordLimiterWait(priority, System.nanoTime() - start);
+                        return send(body.get(), signature, priority);
+                    })
+                    .thenApply(json::documentResult);
+        });
+    }
+
+    private CompletableFuture<ClientResponse> send(RequestBody body, String signature, Priority priority) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Signature", signature);
+        long start = System.nanoTime();
+        CompletableFuture<ClientResponse> request;
+        try {
+            request = httpClient.postAsync(apiAddress + "/lk/documents/create", body, headers, priority);
+        } catch (RuntimeException e) {
+            // пользовательский транспорт может бросить исключение вместо завершения результата
+            return CompletableFuture.failedFuture(e);
+        }
+        return request
+                .whenComplete((response, e) -> {
+                    metrics.recordHttpRequest(response == null ? 0 : response.getStatusCode(), System.nanoTime() - start);
+                    if (response != null) {
+                        rateLimiter.onResponse(response);
+                    }
+                });
+    }
+
+    /**
+     * Объединение одновременных отправок одного документа в один запрос по {@link SubmissionKey}. Успешный результат в течение окна запоминания возвращается повторным отправкам,
+     * пришедшим сразу после завершения запроса; ошибки не запоминаются, чтобы повтор выполнил новый запрос.
+     * <p>
+     * Ключи распределены по секциям со своей блокировкой, поэтому отправки разных документов не ждут друг друга.
+     * Завершённые записи каждой секции лежат в очереди в порядке истечения и удаляются при обращении к секции.
+     */
+    private static final class SingleFlight {
+        private static final int STRIPES = 64;
+
+        private final Stripe[] stripes = new Stripe[STRIPES];
+        private final long windowNanos;
+
+        private SingleFlight(Duration window) {
+            this.windowNanos = window.toNanos();
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        private CompletableFuture<DocumentResult> execute(Object key, Supplier<CompletableFuture<DocumentResult>> call) {
+            if (key == null) {
+                return call.get();
+            }
+            int hash = key.hashCode();
+            Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+            Flight flight;
+            stripe.lock.lock();
+            try {
+                stripe.expire(System.nanoTime());
+                Flight existing = stripe.flights.get(key);
+                if (existing != null) {
+                    return existing.result.copy();
+                }
+                flight = new Flight(key);
+                stripe.flights.put(key, flight);
+            } finally {
+                stripe.lock.unlock();
+            }
+            try {
+                call.get().whenComplete((result, e) -> complete(stripe, flight, result, e));
+            } catch (RuntimeException e) {
+                complete(stripe, flight, null, e);
+                throw e;
+            }
+            return flight.result.copy();
+        }
+
+        private void complete(Stripe stripe, Flight flight, DocumentResult result, Throwable e) {
+            stripe.lock.lock();
+            try {
+                if (e == null && result.isSuccessful() && windowNanos > 0) {
+                    flight.expiresAt = System.nanoTime() + windowNanos;
+                    stripe.completed.add(flight);
+                } else {
+                    stripe.flights.remove(flight.key, flight);
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            if (e != null) {
+                flight.result.completeExceptionally(e);
+            } else {
+                flight.result.complete(result);
+            }
+        }
+
+        private static final class Stripe {
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Map<Object, Flight> flights = new HashMap<>();
+            private final Queue<Flight> completed = new ArrayDeque<>();
+
+            private void expire(long now) {
+                Flight flight;
+                while ((flight = completed.peek()) != null && flight.expiresAt - now <= 0) {
+                    completed.poll();
+                    flights.remove(flight.key, flight);
+                }
+            }
+        }
+
+        private static final class Flight {
+            private final Object key;
+            private final CompletableFuture<DocumentResult> result = new CompletableFuture<>();
+            private long expiresAt;
+
+            private Flight(Object key) {
+                this.key = key;
+            }
+        }
+    }
+
+    /**
+     * Ключ {@link SingleFlight}: doc_id или, для документа без doc_id, SHA-256 тела запроса, вместе с подписью.
+     * Исправленный и заново подписанный документ с тем же doc_id получает другой ключ, а в окне запоминания
+     * хранится отпечаток тела, а не сам документ.
+     */
+    @EqualsAndHashCode
+    private static final class SubmissionKey {
+        private final String docId;
+        private final byte[] digest;
+        private final String signature;
+
+        /**
+         * @param content тело запроса; не используется, если задан doc_id.
+         */
+        private SubmissionKey(String docId, byte[] content, String signature) {
+            this.docId = docId;
+            this.digest = docId == null ? sha256(content) : null;
+            this.signature = signature;
+        }
+
+        private static byte[] sha256(byte[] content) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(content);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Подписанный документ, готовый к отправке.
+     */
+    @Getter
+    @AllArgsConstructor
+    private static final class PreparedDocument {
+        private final RequestBody body;
+        private final String signature;
+        private final SubmissionKey key;
+    }
+
+    /**
+     * Тело запроса, измеряющее время сериализации и размер документа.
+     * Сериализация идёт частями во время отправки, поэтому время складывается из записи всех частей.
+     */
+    private static final class MeasuredBody extends OutputStream implements RequestBody {
+        private final RequestBody body;
+        private final Metrics metrics;
+        private OutputStream out;
+        private long written;
+        private long elapsedNanos;
+
+        private MeasuredBody(RequestBody body, Metrics metrics) {
+            this.body = body;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public boolean writeNext(OutputStream out) throws IOException {
+            this.out = out;
+            long start = System.nanoTime();
+            boolean hasNext = body.writeNext(this);
+            elapsedNanos += System.nanoTime() - start;
+            if (!hasNext) {
+                metrics.recordSerialization(elapsedNanos, written);
+            }
+            return hasNext;
+        }
+
+        @Override
+        public long getContentLength() {
+            return body.getContentLength();
+        }
+
+        @Override
+        public RequestBody copy() {
+            RequestBody copy = body.copy();
+            return copy == null ? null : new MeasuredBody(copy, metrics);
+        }
+
+        @Override
+        public boolean whenReady(Runnable action) {
+            return body.whenReady(action);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+
+    /**
+     * Тело, части которого исходное тело заранее записывает в исполнителе в ограниченный буфер.
+     * Транспорт забирает готовые части и, пока следующей нет, ждёт {@link RequestBody#whenReady}, не занимая поток;
+     * запись следующих частей возобновляется, когда транспорт освобождает место в буфере.
+     */
+    private static final class PrefetchedBody implements RequestBody {
+        private static final int CAPACITY = 4;
+
+        private final RequestBody source;
+        private final Executor executor;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>(CAPACITY);
+        private boolean producing;
+        private boolean finished;
+        private IOException error;
+        private Runnable waiter;
+
+        private PrefetchedBody(RequestBody source, Executor executor) {
+            this.source = source;
+            this.executor = executor;
+            producing = true;
+            schedule();
+        }
+
+        @Override
+        public boolean writeNext(OutputStream out) throws IOException {
+            byte[] chunk;
+            boolean resume;
+            boolean hasNext;
+            lock.lock();
+            try {
+                // транспорт, проверяющий whenReady, здесь не ждёт
+                while (chunks.isEmpty() && !finished && error == null) {
+                    changed.await();
+                }
+                if (chunks.isEmpty()) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return false;
+                }
+                chunk = chunks.poll();
+                resume = !producing && !finished && error == null;
+                producing |= resume;
+                hasNext = !chunks.isEmpty() || !finished;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Ожидание части тела запроса прервано");
+            } finally {
+                lock.unlock();
+            }
+            if (resume) {
+                schedule();
+            }
+            out.write(chunk);
+            return hasNext;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean whenReady(Runnable action) {
+            lock.lock();
+            try {
+                if (!chunks.isEmpty() || finished || error != null) {
+                    return true;
+                }
+                waiter = action;
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this::fill);
+            } catch (RejectedExecutionException e) {
+                complete(null, false, new IOException(e));
+            }
+        }
+
+        private void fill() {
+            boolean hasNext = true;
+            while (hasNext) {
+                lock.lock();
+                try {
+                    if (chunks.size() >= CAPACITY) {
+                        producing = false;
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                try {
+                    hasNext = source.writeNext(chunk);
+                } catch (IOException e) {
+                    complete(null, false, e);
+                    return;
+                } catch (RuntimeException e) {
+                    complete(null, false, new IOException(e));
+                    return;
+                }
+                complete(chunk.size() == 0 ? null : chunk.toByteArray(), !hasNext, null);
+            }
+        }
+
+        private void complete(byte[] chunk, boolean last, IOException failure) {
+            Runnable ready;
+            lock.lock();
+            try {
+                if (chunk != null) {
+                    chunks.add(chunk);
+                }
+                finished |= last;
+                if (failure != null) {
+                    error = failure;
+                }
+                if (last || failure != null) {
+                    producing = false;
+                }
+                ready = chunks.isEmpty() && !finished && error == null ? null : waiter;
+                if (ready != null) {
+                    waiter = null;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (ready != null) {
+                ready.run();
+            }
+        }
+    }
+
+    /**
+     * Значение заголовка в секундах, в секундах Unix-времени или в формате HTTP-даты.
+     */
+    private static long parseDelayNanos(String value) {
+        String trimmed = value.trim();
+        try {
+            long seconds = Long.parseLong(trimmed);
+            long nowSeconds = System.currentTimeMillis() / 1000;
+            if (seconds > nowSeconds / 2) {
+                seconds -= nowSeconds;
+            }
+            return TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime until = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(until.getZone()), until).toNanos());
+            } catch (DateTimeParseException ignored) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Разбор заголовка Server-Timing: {@code name;dur=12.5;desc="...", name2;dur=3}. Метрики без длительности
+     * пропускаются, длительность задаётся в миллисекундах.
+     */
+    private static Map<String, Duration> parseServerTiming(String value) {
+        if (value == null) {
+            return Map.of();
+        }
+        Map<String, Duration> timing = new LinkedHashMap<>();
+        for (String metric : value.split(",")) {
+            String[] parameters = metric.split(";");
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.regionMatches(true, 0, "dur=", 0, 4)) {
+                    try {
+                        double millis = Double.parseDouble(parameter.substring(4).replace("\"", ""));
+                        timing.put(parameters[0].trim(), Duration.ofNanos((long) (millis * 1_000_000)));
+                    } catch (NumberFormatException ignored) {
+                        // некорректная длительность не мешает разбору остальных метрик
+                    }
+                }
+            }
+        }
+        return timing;
+    }
+
+    /**
+     * Исполнитель, запускающий каждую задачу в новом виртуальном потоке. Требует Java 21,
+     * а так как библиотека собирается для Java 17, метод фабрики вызывается через MethodHandle.
+     *
+     * @throws UnsupportedOperationException если виртуальные потоки недоступны.
+     */
+    public static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new UnsupportedOperationException("Виртуальные потоки доступны начиная с Java 21", e);
+        } catch (Throwable e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static ScheduledExecutorService daemonScheduler(String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Освобождает отображение файла сразу, не дожидаясь сборки мусора. Буфер после этого использовать нельзя.
+     * Если освобождение недоступно, отображение освободит сборщик мусора.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+            Field instance = unsafe.getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            unsafe.getMethod("invokeCleaner", ByteBuffer.class).invoke(instance.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // отображение освободит сборщик мусора
+        }
+    }
+
+    /**
+     * Ошибки установления соединения и отказ размыкателя цепи: запрос не дошёл до API,
+     * поэтому его повтор не создаст второй документ.
+     */
+    private static boolean isNotSent(Throwable cause) {
+        return cause instanceof ConnectException || cause instanceof NoRouteToHostException
+                || cause instanceof UnknownHostException || cause instanceof ConnectTimeoutException
+                || cause instanceof java.net.http.HttpConnectTimeoutException
+                || cause instanceof CircuitBreakerOpenException;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+    }
+
+    /**
+     * Приоритет документа при ожидании лимита запросов и его вес в {@link PriorityRateLimiter}
+     */
+    @Getter
+    @AllArgsConstructor
+    public enum Priority {
+        /**
+         * Срочные документы, которые должны уйти за секунды.
+         */
+        URGENT(16),
+        NORMAL(4),
+        /**
+         * Массовые загрузки, использующие остаток лимита.
+         */
+        BULK(1);
+
+        private final int weight;
+    }
+
+    /**
+     * Получатель метрик этапов создания документа.
+     * Методы вызываются на каждый запрос, поэтому реализации должны только обновлять счётчики и гистограммы,
+     * не блокируя поток. Реализация по умолчанию ничего не делает.
+     */
+    public interface Metrics {
+        Metrics NOOP = new Metrics() {
+        };
+
+        /**
+         * Время от запроса разрешения у {@link RateLimiter} до его получения.
+         *
+         * @param priority приоритет запроса.
+         * @param nanos    время ожидания в наносекундах.
+         */
+        default void recordLimiterWait(Priority priority, long nanos) {
+        }
+
+        /**
+         * Сериализация документа в тело запроса.
+         *
+         * @param nanos время сериализации в наносекундах.
+         * @param bytes размер тела в байтах.
+         */
+        default void recordSerialization(long nanos, long bytes) {
+        }
+
+        /**
+         * HTTP-запрос создания документа, включая повторные попытки транспорта.
+         *
+         * @param statusCode код ответа или 0, если ответ не получен.
+         * @param nanos      время запроса в наносекундах.
+         */
+        default void recordHttpRequest(int statusCode, long nanos) {
+        }
+
+        /**
+         * Вызывается один раз при создании {@link CrptApi}. Показатели состояния снимаются по требованию,
+         * например, при опросе системой мониторинга, а не на каждый запрос.
+         *
+         * @param rateLimiter    состояние ограничения запросов.
+         * @param connectionPool состояние пула соединений.
+         */
+        default void bindGauges(Supplier<RateLimiterStats> rateLimiter, Supplier<ConnectionPoolStats> connectionPool) {
+        }
+    }
+
+    /**
+     * Снимок состояния ограничения запросов
+     */
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    public final static class RateLimiterStats {
+        public static final RateLimiterStats EMPTY = new RateLimiterStats(0, 0, 0);
+
+        /**
+         * Запросы, ожидающие разрешения.
+         */
+        private final int waiting;
+        /**
+         * Доступные разрешения. Отрицательное значение означает разрешения, выданные наперёд.
+         */
+        private final long availableTokens;
+        /**
+         * Текущий лимит запросов в интервал времени.
+         */
+        private final long capacity;
+
+        /**
+         * @return доля израсходованного лимита; больше 1, если разрешения выданы наперёд.
+         */
+        public double getUtilization() {
+            return capacity == 0 ? 0 : (double) (capacity - availableTokens) / capacity;
+        }
+    }
+
+    /**
+     * Интерфейс для добавлени абстракции над библиотекой ограничение запросов.
+     */
+    public interface RateLimiter {
+        /**
+         * Получить разрешение на запрос, блокируя поток до его появления.
+         * Ожидание реализуется парковкой потока, а не внутри synchronized, поэтому виртуальный поток
+         * на это время освобождает поток-носитель.
+         */
+        void blockingConsume() throws InterruptedException;
+
+        /**
+         * Получить разрешение на запрос без блокировки потока.
+         *
+         * @return завершается, когда запрос можно выполнять.
+         */
+        CompletableFuture<Void> consumeAsync();
+
+        /**
+         * Получить разрешение на запрос с заданным приоритетом без блокировки потока.
+         * Реализации без приоритетов выдают разрешения в общем порядке.
+         *
+         * @param priority приоритет запроса.
+         * @return завершается, когда запрос можно выполнять.
+         */
+        default CompletableFuture<Void> consumeAsync(Priority priority) {
+            return consumeAsync();
+        }
+
+        /**
+         * Зарезервировать сразу несколько разрешений без блокировки потока.
+         *
+         * @param permits количество разрешений.
+         * @return по одному ожиданию на разрешение, в порядке резервирования.
+         */
+        default List<CompletableFuture<Void>> reserveAsync(int permits) {
+            List<CompletableFuture<Void>> reservations = new ArrayList<>(permits);
+            for (int i = 0; i < permits; i++) {
+                reservations.add(consumeAsync());
+            }
+            return reservations;
+        }
+
+        /**
+         * Вернуть разрешение из {@link #reserveAsync} или {@link #consumeAsync}, по которому запрос не будет выполнен.
+         * Реализации, которые не могут вернуть разрешение, ничего не делают.
+         *
+         * @param reservation ожидание разрешения из {@link #reserveAsync} или {@link #consumeAsync}.
+         */
+        default void release(CompletableFuture<Void> reservation) {
+        }
+
+        /**
+         * Обратная связь от API: вызывается для каждого полученного ответа.
+         *
+         * @param response ответ API.
+         */
+        default void onResponse(ClientResponse response) {
+        }
+
+        /**
+         * Состояние ограничения, если реализация его отслеживает.
+         */
+        default RateLimiterStats getStats() {
+            return RateLimiterStats.EMPTY;
+        }
+    }
+
+    /**
+     * Реализация ограничения запросов через библиотеку Bucket4j
+     */
+    public static class Bucket4jRateLimiter implements RateLimiter {
+        protected final Bucket bucket;
+        protected final ScheduledExecutorService scheduler;
+        protected final AtomicInteger waiting = new AtomicInteger();
+        protected final int requestLimit;
+
+        public Bucket4jRateLimiter(Duration timeLimit, int requestLimit) {
+            this(timeLimit, requestLimit, daemonScheduler("crpt-rate-limiter"));
+        }
+
+        /**
+         * @param scheduler планировщик, на котором завершается ожидание лимита в {@link #consumeAsync()}.
+         */
+        public Bucket4jRateLimiter(Duration timeLimit, int requestLimit, ScheduledExecutorService scheduler) {
+            this(Bucket.builder().addLimit(limit(timeLimit, requestLimit)).build(), requestLimit, scheduler);
+        }
+
+        protected Bucket4jRateLimiter(Bucket bucket, int requestLimit, ScheduledExecutorService scheduler) {
+            this.bucket = bucket;
+            this.requestLimit = requestLimit;
+            this.scheduler = scheduler;
+        }
+
+        protected static Bandwidth limit(Duration timeLimit, int requestLimit) {
+            return Bandwidth.classic(requestLimit, Refill.intervally(requestLimit, timeLimit));
+        }
+
+        @Override
+        public void blockingConsume() throws InterruptedException {
+            waiting.incrementAndGet();
+            try {
+                bucket.asBlocking().consume(1);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> consumeAsync() {
+            return track(bucket.asScheduler().consume(1, scheduler));
+        }
+
+        /**
+         * Каждое разрешение списывается из корзины в долг, а ожидание равно времени,
+         * через которое корзина его восполнит. Так весь пакет резервируется за один проход.
+         */
+        @Override
+        public List<CompletableFuture<Void>> reserveAsync(int permits) {
+            List<CompletableFuture<Void>> reservations = new ArrayList<>(permits);
+            for (int i = 0; i < permits; i++) {
+                reservations.add(track(delay(bucket.consumeIgnoringRateLimits(1))));
+            }
+            return reservations;
+        }
+
+        /**
+         * Разрешение возвращается в корзину, когда подходит его очередь: до этого оно уже учтено во времени
+         * ожидания следующих разрешений.
+         */
+        @Override
+        public void release(CompletableFuture<Void> reservation) {
+            reservation.whenComplete((ignored, e) -> {
+                if (e == null) {
+                    bucket.addTokens(1);
+                }
+            });
+        }
+
+        @Override
+        public RateLimiterStats getStats() {
+            return new RateLimiterStats(waiting.get(), bucket.getAvailableTokens(), requestLimit);
+        }
+
+        /**
+         * Учитывает разрешение в количестве ожидающих, пока оно не будет получено.
+         */
+        protected CompletableFuture<Void> track(CompletableFuture<Void> permit) {
+            if (!permit.isDone()) {
+                waiting.incrementAndGet();
+                permit.whenComplete((ignored, e) -> waiting.decrementAndGet());
+            }
+            return permit;
+        }
+
+        /**
+         * @return завершается через заданное время на планировщике ограничителя.
+         */
+        protected CompletableFuture<Void> delay(long nanos) {
+            if (nanos <= 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> delay = new CompletableFuture<>();
+            scheduler.schedule(() -> delay.complete(null), nanos, TimeUnit.NANOSECONDS);
+            return delay;
+        }
+    }
+
+    /**
+     * Ограничение запросов, подстраивающееся под ответы API по схеме AIMD.
+     * На 429 и 503 текущий лимит уменьшается вдвое (не чаще раза за интервал, чтобы ответы на уже отправленные
+     * запросы не обрушили его до минимума), а после каждого интервала без отказов растёт на один запрос,
+     * но не выше лимита, заданного в конструкторе.
+     * Заголовки Retry-After и RateLimit-Remaining/RateLimit-Reset приостанавливают выдачу разрешений до указанного времени.
+     */
+    public static class AdaptiveRateLimiter extends Bucket4jRateLimiter {
+        private static final int MIN_LIMIT = 1;
+
+        private final Duration timeLimit;
+        private final int maxLimit;
+        private final AtomicInteger successes = new AtomicInteger();
+        private final ReentrantLock limitLock = new ReentrantLock();
+        private volatile int currentLimit;
+        private volatile long lastDecreaseNanos;
+        private volatile long pausedUntilNanos;
+
+        /**
+         * @param timeLimit    интервал времени.
+         * @param requestLimit максимальное количество запросов в заданный интервал времени, выше которого лимит не растёт.
+         */
+        public AdaptiveRateLimiter(Duration timeLimit, int requestLimit) {
+            this(timeLimit, requestLimit, daemonScheduler("crpt-rate-limiter"));
+        }
+
+        public AdaptiveRateLimiter(Duration timeLimit, int requestLimit, ScheduledExecutorService scheduler) {
+            super(timeLimit, requestLimit, scheduler);
+            this.timeLimit = timeLimit;
+            this.maxLimit = requestLimit;
+            this.currentLimit = requestLimit;
+            this.lastDecreaseNanos = System.nanoTime() - timeLimit.toNanos();
+        }
+
+        /**
+         * @return текущее количество запросов в интервал времени.
+         */
+        public int getCurrentLimit() {
+            return currentLimit;
+        }
+
+        @Override
+        public void blockingConsume() throws InterruptedException {
+            waiting.incrementAndGet();
+            try {
+                long pauseNanos;
+                while ((pauseNanos = pausedUntilNanos - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.sleep(pauseNanos);
+                }
+                bucket.asBlocking().consume(1);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> consumeAsync() {
+            return track(consumeAfterPause());
+        }
+
+        /**
+         * Разрешения выдаются по одному, чтобы пакет учитывал паузы и изменения лимита во время ожидания.
+         */
+        @Override
+        public List<CompletableFuture<Void>> reserveAsync(int permits) {
+            List<CompletableFuture<Void>> reservations = new ArrayList<>(permits);
+            for (int i = 0; i < permits; i++) {
+                reservations.add(consumeAsync());
+            }
+            return reservations;
+        }
+
+        @Override
+        public RateLimiterStats getStats() {
+            return new RateLimiterStats(waiting.get(), bucket.getAvailableTokens(), currentLimit);
+        }
+
+        @Override
+        public void onResponse(ClientResponse response) {
+            long pauseNanos = pauseNanos(response);
+            if (pauseNanos > 0) {
+                pausedUntilNanos = Math.max(pausedUntilNanos, System.nanoTime() + pauseNanos);
+            }
+            int statusCode = response.getStatusCode();
+            if (statusCode == 429 || statusCode == 503) {
+                decrease();
+            } else if (statusCode < 400 && successes.incrementAndGet() >= currentLimit) {
+                successes.set(0);
+                increase();
+            }
+        }
+
+        private CompletableFuture<Void> consumeAfterPause() {
+            long pauseNanos = pausedUntilNanos - System.nanoTime();
+            if (pauseNanos > 0) {
+                return delay(pauseNanos).thenCompose(ignored -> consumeAfterPause());
+            }
+            return bucket.asScheduler().consume(1, scheduler);
+        }
+
+        /**
+         * Изменения лимита защищены {@link ReentrantLock}, а не synchronized: ожидание монитора
+         * закрепило бы виртуальный поток за потоком-носителем.
+         */
+        private void decrease() {
+            limitLock.lock();
+            try {
+                long now = System.nanoTime();
+                if (now - lastDecreaseNanos < timeLimit.toNanos()) {
+                    return;
+                }
+                lastDecreaseNanos = now;
+                successes.set(0);
+                updateLimit(Math.max(MIN_LIMIT, currentLimit / 2), TokensInheritanceStrategy.PROPORTIONALLY);
+            } finally {
+                limitLock.unlock();
+            }
+        }
+
+        private void increase() {
+            limitLock.lock();
+            try {
+                if (currentLimit < maxLimit) {
+                    updateLimit(currentLimit + 1, TokensInheritanceStrategy.AS_IS);
+                }
+            } finally {
+                limitLock.unlock();
+            }
+        }
+
+        private void updateLimit(int limit, TokensInheritanceStrategy strategy) {
+            if (limit != currentLimit) {
+                currentLimit = limit;
+                bucket.replaceConfiguration(BucketConfiguration.builder().addLimit(limit(timeLimit, limit)).build(), strategy);
+            }
+        }
+
+        private static long pauseNanos(ClientResponse response) {
+            String retryAfter = response.getHeader("Retry-After");
+            if (retryAfter != null) {
+                return parseDelayNanos(retryAfter);
+            }
+            String remaining = response.getHeader("RateLimit-Remaining");
+            if (remaining == null) {
+                remaining = response.getHeader("X-RateLimit-Remaining");
+            }
+            String reset = response.getHeader("RateLimit-Reset");
+            if (reset == null) {
+                reset = response.getHeader("X-RateLimit-Reset");
+            }
+            if ("0".equals(remaining == null ? null : remaining.trim()) && reset != null) {
+                return parseDelayNanos(reset);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Ограничение запросов с очередями по приоритетам.
+     * Ожидающие запросы стоят в очереди своего {@link Priority}, а освободившиеся разрешения распределяются
+     * между непустыми очередями взвешенно-справедливо (stride scheduling): при конкуренции очередь получает долю лимита,
+     * пропорциональную весу, а незанятую долю забирают остальные. Срочные запросы не ждут за массовой загрузкой,
+     * а массовая загрузка не голодает полностью.
+     * <p>
+     * Распределение защищено блокировкой, поэтому планировщик может быть многопоточным, а разрешения завершаются
+     * в отдельном исполнителе: продолжения запросов, например, сериализация и сжатие тела, не занимают планировщик.
+     */
+    public static class PriorityRateLimiter extends Bucket4jRateLimiter {
+        private static final long STRIDE = 1L << 20;
+
+        private final Map<Priority, Lane> lanes = new EnumMap<>(Priority.class);
+        private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+        private final ReentrantLock dispatchLock = new ReentrantLock();
+        private final Executor completionExecutor;
+        private long virtualTime;
+
+        /**
+         * @param timeLimit    интервал времени.
+         * @param requestLimit максимальное количество запросов в заданный интервал времени для всех очередей.
+         */
+        public PriorityRateLimiter(Duration timeLimit, int requestLimit) {
+            this(timeLimit, requestLimit, daemonScheduler("crpt-rate-limiter"));
+        }
+
+        /**
+         * @param scheduler планировщик, на котором выполняется распределение разрешений.
+         */
+        public PriorityRateLimiter(Duration timeLimit, int requestLimit, ScheduledExecutorService scheduler) {
+            this(timeLimit, requestLimit, scheduler, ForkJoinPool.commonPool());
+        }
+
+        /**
+         * @param scheduler          планировщик, на котором выполняется распределение разрешений.
+         * @param completionExecutor исполнитель, в котором завершаются выданные разрешения, например,
+         *                           исполнитель подготовки документов {@link CrptApi}.
+         */
+        public PriorityRateLimiter(Duration timeLimit, int requestLimit, ScheduledExecutorService scheduler,
+                                   Executor completionExecutor) {
+            super(timeLimit, requestLimit, scheduler);
+            this.completionExecutor = completionExecutor;
+            for (Priority priority : Priority.values()) {
+                lanes.put(priority, new Lane(STRIDE / priority.getWeight()));
+            }
+        }
+
+        @Override
+        public void blockingConsume() throws InterruptedException {
+            CompletableFuture<Void> permit = consumeAsync();
+            try {
+                permit.get();
+            } catch (InterruptedException e) {
+                permit.cancel(false);
+                throw e;
+            } catch (ExecutionException e) {
+                throw unwrap(e.getCause());
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> consumeAsync() {
+            return consumeAsync(Priority.NORMAL);
+        }
+
+        @Override
+        public CompletableFuture<Void> consumeAsync(Priority priority) {
+            Lane lane = lanes.get(priority);
+            Waiter waiter = new Waiter(new CompletableFuture<>(), System.nanoTime());
+            lane.depth.incrementAndGet();
+            lane.queue.add(waiter);
+            requestDispatch();
+            return waiter.permit;
+        }
+
+        @Override
+        public List<CompletableFuture<Void>> reserveAsync(int permits) {
+            List<CompletableFuture<Void>> reservations = new ArrayList<>(permits);
+            for (int i = 0; i < permits; i++) {
+                reservations.add(consumeAsync());
+            }
+            return reservations;
+        }
+
+        /**
+         * Ожидающее разрешение отменяется и удаляется из очереди, не расходуя корзину.
+         */
+        @Override
+        public void release(CompletableFuture<Void> reservation) {
+            if (!reservation.cancel(false)) {
+                super.release(reservation);
+            }
+        }
+
+        /**
+         * @param priority приоритет очереди.
+         * @return текущая глубина очереди и время ожидания выданных разрешений.
+         */
+        public LaneStats getLaneStats(Priority priority) {
+            Lane lane = lanes.get(priority);
+            long granted = lane.granted.sum();
+            return new LaneStats(lane.depth.get(), granted,
+                    granted == 0 ? Duration.ZERO : Duration.ofNanos(lane.totalWaitNanos.sum() / granted),
+                    Duration.ofNanos(lane.maxWaitNanos.get()));
+        }
+
+        @Override
+        public RateLimiterStats getStats() {
+            int depth = 0;
+            for (Lane lane : lanes.values()) {
+                depth += lane.depth.get();
+            }
+            return new RateLimiterStats(depth, bucket.getAvailableTokens(), requestLimit);
+        }
+
+        private void requestDispatch() {
+            if (dispatchScheduled.compareAndSet(false, true)) {
+                scheduler.execute(this::dispatch);
+            }
+        }
+
+        /**
+         * Выполняется на планировщике, в том числе одновременно в нескольких его потоках, поэтому состояние
+         * очередей изменяется под {@link #dispatchLock}.
+         */
+        private void dispatch() {
+            dispatchScheduled.set(false);
+            dispatchLock.lock();
+            try {
+                while (true) {
+                    Lane lane = nextLane();
+                    if (lane == null) {
+                        return;
+                    }
+                    if (!bucket.tryConsume(1)) {
+                        long waitNanos = bucket.estimateAbilityToConsume(1).getNanosToWaitForRefill();
+                        if (dispatchScheduled.compareAndSet(false, true)) {
+                            scheduler.schedule(this::dispatch, waitNanos, TimeUnit.NANOSECONDS);
+                        }
+                        return;
+                    }
+                    Waiter waiter = lane.queue.poll();
+                    lane.depth.decrementAndGet();
+                    virtualTime = lane.pass;
+                    lane.pass += lane.stride;
+                    long waitNanos = System.nanoTime() - waiter.enqueuedNanos;
+                    lane.granted.increment();
+                    lane.totalWaitNanos.add(waitNanos);
+                    lane.maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+                    grant(waiter);
+                }
+            } finally {
+                dispatchLock.unlock();
+            }
+        }
+
+        /**
+         * Разрешение ожидания, отменённого после выбора очереди, возвращается в корзину.
+         */
+        private void grant(Waiter waiter) {
+            Runnable complete = () -> {
+                if (!waiter.permit.complete(null)) {
+                    bucket.addTokens(1);
+                }
+            };
+            try {
+                completionExecutor.execute(complete);
+            } catch (RejectedExecutionException e) {
+                complete.run();
+            }
+        }
+
+        /**
+         * Непустая очередь с наименьшим проходом. Отменённые ожидания удаляются, не расходуя разрешений.
+         * Вызывается под {@link #dispatchLock}.
+         */
+        private Lane nextLane() {
+            Lane next = null;
+            for (Lane lane : lanes.values()) {
+                Waiter head;
+                while ((head = lane.queue.peek()) != null && head.permit.isDone()) {
+                    lane.queue.poll();
+                    lane.depth.decrementAndGet();
+                }
+                if (head == null) {
+                    lane.active = false;
+                    continue;
+                }
+                if (!lane.active) {
+                    // очередь, простаивавшая без запросов, не накапливает преимущество
+                    lane.pass = Math.max(lane.pass, virtualTime);
+                    lane.active = true;
+                }
+                if (next == null || lane.pass < next.pass) {
+                    next = lane;
+                }
+            }
+            return next;
+        }
+
+        @AllArgsConstructor
+        private static final class Waiter {
+            private final CompletableFuture<Void> permit;
+            private final long enqueuedNanos;
+        }
+
+        private static final class Lane {
+            private final long stride;
+            private final Queue<Waiter> queue = new ConcurrentLinkedQueue<>();
+            private final AtomicInteger depth = new AtomicInteger();
+            private final LongAdder granted = new LongAdder();
+            private final LongAdder totalWaitNanos = new LongAdder();
+            private final AtomicLong maxWaitNanos = new AtomicLong();
+            private long pass;
+            private boolean active;
+
+            private Lane(long stride) {
+                this.stride = stride;
+            }
+        }
+    }
+
+    /**
+     * Снимок состояния очереди {@link PriorityRateLimiter}
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public final static class LaneStats {
+        /**
+         * Запросы, ожидающие разрешения.
+         */
+        private final int queueDepth;
+        /**
+         * Выданные разрешения.
+         */
+        private final long granted;
+        private final Duration averageWait;
+        private final Duration maxWait;
+    }
+
+    /**
+     * Ограничение запросов, общее для нескольких экземпляров приложения.
+     * Состояние корзины хранится во внешнем хранилище через ProxyManager библиотеки Bucket4j,
+     * поэтому все реплики с одинаковым ключом расходуют один общий лимит.
+     */
+    public static class DistributedRateLimiter extends Bucket4jRateLimiter {
+        /**
+         * @param proxyManager хранилище состояния корзин, общее для всех экземпляров.
+         * @param key          ключ корзины, например, идентификатор учётной записи.
+         * @param timeLimit    интервал времени.
+         * @param requestLimit максимальное количество запросов в заданный интервал времени для всех экземпляров.
+         */
+        public <K> DistributedRateLimiter(ProxyManager<K> proxyManager, K key, Duration timeLimit, int requestLimit) {
+            this(proxyManager, key, timeLimit, requestLimit, daemonScheduler("crpt-rate-limiter"));
+        }
+
+        public <K> DistributedRateLimiter(ProxyManager<K> proxyManager, K key, Duration timeLimit, int requestLimit,
+                                          ScheduledExecutorService scheduler) {
+            super(proxyManager.builder().build(key, BucketConfiguration.builder()
+                    .addLimit(limit(timeLimit, requestLimit))
+                    .build()), requestLimit, scheduler);
+        }
+    }
+
+    /**
+     * Хранилище состояния корзин Bucket4j в отображённых в память файлах для нескольких процессов на одном хосте.
+     * Каждой корзине соответствует файл в каталоге, доступ к нему разграничивается блокировкой файла
+     * между процессами и {@link ReentrantLock} между потоками одного процесса.
+     * <p>
+     * Блокировка файла принадлежит процессу, поэтому все экземпляры в одном процессе используют один канал
+     * и одно отображение на файл. Канал закрывается, когда его освобождает {@link #close()} последнего
+     * использующего его экземпляра.
+     */
+    public static class MappedFileProxyManager extends AbstractLockBasedProxyManager<String> implements AutoCloseable {
+        private static final int FILE_SIZE = 4096;
+        private static final int HEADER_SIZE = Integer.BYTES;
+        private static final Map<Path, Slot> SHARED_SLOTS = new ConcurrentHashMap<>();
+
+        private final Path directory;
+        private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        /**
+         * @param directory каталог с файлами корзин, общий для всех процессов.
+         */
+        public MappedFileProxyManager(Path directory) {
+            super(ClientSideConfig.getDefault());
+            this.directory = directory;
+        }
+
+        @Override
+        protected LockBasedTransaction allocateTransaction(String key) {
+            return new FileTransaction(slot(key));
+        }
+
+        @Override
+        public void removeProxy(String key) {
+            Slot slot = slot(key);
+            FileTransaction transaction = new FileTransaction(slot);
+            transaction.lockAndGet();
+            try {
+                slot.buffer.putInt(0, 0);
+            } finally {
+                transaction.unlock();
+            }
+        }
+
+        /**
+         * Освобождает файлы корзин этого экземпляра. Последующие обращения к корзинам завершаются
+         * {@link IllegalStateException}.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            for (String key : slots.keySet()) {
+                Slot slot = slots.remove(key);
+                if (slot != null) {
+                    release(slot);
+                }
+            }
+        }
+
+        private Slot slot(String key) {
+            if (!key.matches("[A-Za-z0-9._-]+")) {
+                throw new IllegalArgumentException("Недопустимый ключ корзины: " + key);
+            }
+            checkOpen();
+            Slot slot = slots.computeIfAbsent(key, k -> acquire(directory.resolve(k + ".bucket").toAbsolutePath().normalize()));
+            // close мог не застать добавленную корзину
+            if (closed && slots.remove(key, slot)) {
+                release(slot);
+            }
+            checkOpen();
+            return slot;
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Хранилище корзин закрыто");
+            }
+        }
+
+        private static Slot acquire(Path path) {
+            return SHARED_SLOTS.compute(path, (p, slot) -> {
+                if (slot != null) {
+                    slot.references++;
+                    return slot;
+                }
+                try {
+                    Files.createDirectories(p.getParent());
+                    FileChannel channel = FileChannel.open(p,
+                            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    try {
+                        return new Slot(p, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE));
+                    } catch (IOException | RuntimeException e) {
+                        channel.close();
+                        throw e;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        /**
+         * Последний экземпляр закрывает канал и освобождает отображение, дождавшись завершения начатой транзакции.
+         */
+        private static void release(Slot slot) {
+            SHARED_SLOTS.computeIfPresent(slot.path, (p, shared) -> {
+                if (--shared.references > 0) {
+                    return shared;
+                }
+                shared.lock.lock();
+                try {
+                    shared.closed = true;
+                    shared.buffer.force();
+                    shared.channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    unmap(shared.buffer);
+                    shared.lock.unlock();
+                }
+                return null;
+            });
+        }
+
+        /**
+         * Счётчик ссылок изменяется в {@code compute} общей таблицы для пути файла,
+         * признак закрытия — под {@link #lock}.
+         */
+        private static final class Slot {
+            private final Path path;
+            private final FileChannel channel;
+            private final MappedByteBuffer buffer;
+            private final ReentrantLock lock = new ReentrantLock();
+            private int references = 1;
+            private boolean closed;
+
+            private Slot(Path path, FileChannel channel, MappedByteBuffer buffer) {
+                this.path = path;
+                this.channel = channel;
+                this.buffer = buffer;
+            }
+        }
+
+        /**
+         * Файл корзины: длина состояния и само состояние. Нулевая длина означает, что корзины нет.
+         */
+        private static final class FileTransaction implements LockBasedTransaction {
+            private final Slot slot;
+            private FileLock fileLock;
+
+            private FileTransaction(Slot slot) {
+                this.slot = slot;
+            }
+
+            @Override
+            public void begin() {
+            }
+
+            @Override
+            public byte[] lockAndGet() {
+                slot.lock.lock();
+                try {
+                    if (slot.closed) {
+                        throw new IllegalStateException("Хранилище корзин закрыто");
+                    }
+                    fileLock = slot.channel.lock();
+                } catch (IOException e) {
+                    slot.lock.unlock();
+                    throw new UncheckedIOException(e);
+                } catch (RuntimeException e) {
+                    slot.lock.unlock();
+                    throw e;
+                }
+                int length = slot.buffer.getInt(0);
+                if (length == 0) {
+                    return null;
+                }
+                byte[] data = new byte[length];
+                slot.buffer.get(HEADER_SIZE, data);
+                return data;
+            }
+
+            @Override
+            public void create(byte[] data, RemoteBucketState state) {
+                write(data);
+            }
+
+            @Override
+            public void update(byte[] data, RemoteBucketState state) {
+                write(data);
+            }
+
+            private void write(byte[] data) {
+                if (data.length > FILE_SIZE - HEADER_SIZE) {
+                    throw new IllegalStateException("Состояние корзины не помещается в файл: " + data.length + " байт");
+                }
+                slot.buffer.put(HEADER_SIZE, data);
+                slot.buffer.putInt(0, data.length);
+            }
+
+            @Override
+            public void unlock() {
+                if (fileLock == null) {
+                    return;
+                }
+                try {
+                    fileLock.release();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    fileLock = null;
+                    slot.lock.unlock();
+                }
+            }
+
+            @Override
+            public void commit() {
+            }
+
+            @Override
+            public void rollback() {
+            }
+
+            @Override
+            public void release() {
+                unlock();
+            }
+        }
+    }
+
+    /**
+     * Подпись тела запроса. {@link CrptApi} передаёт ровно те байты, которые будут отправлены.
+     * Реализация вызывается из нескольких потоков {@link SigningPool} одновременно, поэтому должна быть
+     * потокобезопасной и загружать ключи один раз при создании, а не на каждую подпись.
+     */
+    @FunctionalInterface
+    public interface Signer {
+        /**
+         * @param content тело запроса.
+         * @return подпись в Base64 для заголовка Signature.
+         */
+        String sign(byte[] content);
+    }
+
+    /**
+     * Программная подпись средствами {@link Signature} для локальной проверки и тестового контура.
+     * Возвращает подпись алгоритма (например, SHA256withRSA) в Base64, а не отсоединённую подпись CAdES,
+     * которую ожидает API: для него нужна реализация {@link Signer} поверх провайдера ГОСТ-криптографии.
+     * Закрытый ключ загружается один раз, а {@link Signature} инициализируется ключом один раз на поток.
+     */
+    public static class SoftwareSigner implements Signer {
+        @Getter
+        private final PublicKey publicKey;
+        @Getter
+        private final String algorithm;
+        private final ThreadLocal<Signature> signatures;
+
+        /**
+         * @param privateKey закрытый ключ подписи.
+         * @param publicKey  открытый ключ для проверки подписи или null.
+         * @param algorithm  алгоритм {@link Signature}, например, SHA256withRSA или SHA256withECDSA.
+         */
+        public SoftwareSigner(PrivateKey privateKey, PublicKey publicKey, String algorithm) {
+            this.publicKey = publicKey;
+            this.algorithm = algorithm;
+            this.signatures = ThreadLocal.withInitial(() -> {
+                try {
+                    Signature signature = Signature.getInstance(algorithm);
+                    signature.initSign(privateKey);
+                    return signature;
+                } catch (GeneralSecurityException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            // неверный алгоритм или ключ обнаруживается при создании, а не при первой подписи
+            signatures.get();
+        }
+
+        /**
+         * Подпись ключом из хранилища PKCS#12 или JKS.
+         *
+         * @param path      файл хранилища ключей.
+         * @param password  пароль хранилища и ключа.
+         * @param alias     имя ключа в хранилище.
+         * @param algorithm алгоритм {@link Signature}.
+         */
+        public static SoftwareSigner fromKeyStore(Path path, char[] password, String alias, String algorithm) {
+            try {
+                KeyStore keyStore = KeyStore.getInstance(path.toFile(), password);
+                if (!(keyStore.getKey(alias, password) instanceof PrivateKey)) {
+                    throw new IllegalArgumentException("В хранилище нет закрытого ключа " + alias);
+                }
+                Certificate certificate = keyStore.getCertificate(alias);
+                return new SoftwareSigner((PrivateKey) keyStore.getKey(alias, password),
+                        certificate == null ? null : certificate.getPublicKey(), algorithm);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Подпись новым ключом RSA-2048, например, для проверки отправки против заглушки API.
+         */
+        public static SoftwareSigner generate() {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(2048);
+                KeyPair keyPair = generator.generateKeyPair();
+                return new SoftwareSigner(keyPair.getPrivate(), keyPair.getPublic(), "SHA256withRSA");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public String sign(byte[] content) {
+            Signature signature = signatures.get();
+            try {
+                signature.update(content);
+                return Base64.getEncoder().encodeToString(signature.sign());
+            } catch (SignatureException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Пул потоков подписи: {@link Signer} вызывается параллельно в заданном количестве потоков.
+     * Очередь задач ограничена, поэтому тела документов, ожидающих подписи, не накапливаются в памяти, а подпись
+     * не выполняется в чужих потоках, например, в общем пуле {@link ForkJoinPool}. При заполненной очереди
+     * {@link #signAsync} сразу завершается {@link RejectedExecutionException}, а {@link #submit} ждёт
+     * свободного места в вызывающем потоке.
+     */
+    public static class SigningPool implements Closeable {
+        @Getter
+        private final Signer signer;
+        private final ThreadPoolExecutor executor;
+        /**
+         * Свободные места в очереди: место занимается до передачи задачи в пул и освобождается, когда её начинает
+         * выполнять поток подписи, поэтому очередь пула не переполняется.
+         */
+        private final Semaphore slots;
+
+        /**
+         * @param signer  подпись тела запроса.
+         * @param threads количество потоков подписи.
+         */
+        public SigningPool(Signer signer, int threads) {
+            this(signer, threads, threads * 16);
+        }
+
+        /**
+         * @param signer        подпись тела запроса.
+         * @param threads       количество потоков подписи.
+         * @param queueCapacity сколько документов может ожидать свободного потока подписи.
+         */
+        public SigningPool(Signer signer, int threads, int queueCapacity) {
+            this.signer = signer;
+            this.slots = new Semaphore(queueCapacity);
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "crpt-signer-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    (task, pool) -> {
+                        throw new RejectedExecutionException("Пул подписи закрыт");
+                    });
+        }
+
+        /**
+         * @param content тело запроса.
+         * @return подпись, которая будет получена после выполнения в пуле, или {@link RejectedExecutionException},
+         * если пул закрыт или очередь подписи заполнена.
+         */
+        public CompletableFuture<String> signAsync(byte[] content) {
+            if (!slots.tryAcquire()) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Очередь подписи заполнена"));
+            }
+            return enqueue(content);
+        }
+
+        /**
+         * Поставить тело запроса в очередь подписи, блокируя вызывающий поток, пока в очереди нет места.
+         *
+         * @param content тело запроса.
+         * @return подпись, которая будет получена после выполнения в пуле, или {@link RejectedExecutionException},
+         * если пул закрыт.
+         */
+        public CompletableFuture<String> submit(byte[] content) {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            return enqueue(content);
+        }
+
+        /**
+         * Количество документов, ожидающих свободного потока подписи.
+         */
+        public int getQueued() {
+            return executor.getQueue().size();
+        }
+
+        private CompletableFuture<String> enqueue(byte[] content) {
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                    slots.release();
+                    return signer.sign(content);
+                }, executor);
+            } catch (RejectedExecutionException e) {
+                slots.release();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Ограничения API на один документ для {@link DocumentSplitter}.
+     * Значения по умолчанию консервативны, фактические ограничения задаются по документации API.
+     */
+    @Getter
+    @Builder
+    @ToString
+    public static class DocumentLimits {
+        /**
+         * Максимальное количество товаров в документе.
+         */
+        @Builder.Default
+        private final int maxProducts = 10_000;
+        /**
+         * Максимальный размер тела запроса в байтах.
+         */
+        @Builder.Default
+        private final long maxBytes = 8 * 1024 * 1024;
+    }
+
+    /**
+     * Разделение документа, превышающего {@link DocumentLimits}, на части с теми же полями и частью товаров.
+     * Размер оценивается без сериализации товаров: пустой товар и поля документа сериализуются один раз,
+     * а к ним добавляется длина значений в UTF-8 с учётом экранирования.
+     * <p>
+     * Части являются отдельными документами для API, поэтому получают собственный doc_id, построенный
+     * из doc_id исходного документа и номера части. Документ без doc_id делится на части без doc_id.
+     */
+    public static class DocumentSplitter {
+        /**
+         * Идентификатор части по умолчанию: doc_id исходного документа с суффиксом {@code -N},
+         * где N — номер части начиная с 1.
+         */
+        public static final BiFunction<String, Integer, String> SUFFIX_PART_ID = (docId, number) -> docId + "-" + number;
+
+        private static final int NULL_LENGTH = 4;
+        private static final int DATE_LENGTH = 12;
+
+        private final DocumentLimits limits;
+        private final BiFunction<String, Integer, String> partId;
+        private final JsonSerializer json = new JacksonSerializer();
+        private final long emptyProductSize;
+
+        public DocumentSplitter(DocumentLimits limits) {
+            this(limits, SUFFIX_PART_ID);
+        }
+
+        /**
+         * @param partId функция построения doc_id части из doc_id исходного документа и номера части начиная с 1.
+         */
+        public DocumentSplitter(DocumentLimits limits, BiFunction<String, Integer, String> partId) {
+            this.limits = limits;
+            this.partId = partId;
+            emptyProductSize = utf8Length(json.serialize(new Product(null, null, null, null, null, null, null, null, null)), false);
+        }
+
+        /**
+         * @return оценка размера документа в формате JSON в байтах.
+         */
+        public long estimateSize(Document document) {
+            long size = headerSize(document);
+            if (document.getProducts() != null) {
+                for (Product product : document.getProducts()) {
+                    size += estimateSize(product);
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Документ в пределах ограничений возвращается без изменений. Иначе товары последовательно
+         * распределяются по частям, каждая из которых не превышает ограничений, а doc_id части строится
+         * функцией идентификатора части. Товар, который не помещается даже один, отправляется отдельной частью.
+         *
+         * @return части документа в порядке товаров.
+         */
+        public List<Document> split(Document document) {
+            List<Product> products = document.getProducts();
+            if (products == null || products.isEmpty()) {
+                return List.of(document);
+            }
+            // заголовок оценивается с doc_id части с наибольшим возможным номером
+            long budget = limits.getMaxBytes() - headerSize(withProducts(document, partDocId(document, products.size()), null));
+            List<Document> parts = new ArrayList<>();
+            int from = 0;
+            long size = 0;
+            for (int i = 0; i < products.size(); i++) {
+                long productSize = estimateSize(products.get(i));
+                if (i > from && (i - from >= limits.getMaxProducts() || size + productSize > budget)) {
+                    parts.add(part(document, products.subList(from, i), parts.size()));
+                    from = i;
+                    size = 0;
+                }
+                size += productSize;
+            }
+            if (parts.isEmpty()) {
+                return List.of(document);
+            }
+            parts.add(part(document, products.subList(from, products.size()), parts.size()));
+            return parts;
+        }
+
+        private Document part(Document document, List<Product> products, int index) {
+            return withProducts(document, partDocId(document, index + 1), products);
+        }
+
+        private String partDocId(Document document, int number) {
+            return document.getDocId() == null ? null : partId.apply(document.getDocId(), number);
+        }
+
+        private static Document withProducts(Document document, String docId, List<Product> products) {
+            return new Document(document.getDescription(), docId, document.getDocStatus(), document.getDocType(),
+                    document.isImportRequest(), document.getOwnerInn(), document.getParticipantInn(),
+                    document.getProducerInn(), document.getProductionDate(), document.getProductionType(), products,
+                    document.getRegDate(), document.getRegNumber());
+        }
+
+        /**
+         * Поля документа со списком товаров без элементов.
+         */
+        private long headerSize(Document document) {
+            Document header = withProducts(document, document.getDocId(), null);
+            // "products":null заменяется на "products":[]
+            return utf8Length(json.serialize(header), false) - NULL_LENGTH + 2;
+        }
+
+        /**
+         * @return оценка размера товара в формате JSON вместе с разделяющей запятой в байтах.
+         */
+        public long estimateSize(Product product) {
+            if (product == null) {
+                return NULL_LENGTH + 1;
+            }
+            return emptyProductSize + 1
+                    + stringSize(product.getCertificateDocument())
+                    + dateSize(product.getCertificateDocumentDate())
+                    + stringSize(product.getCertificateDocumentNumber())
+                    + stringSize(product.getOwnerInn())
+                    + stringSize(product.getProducerInn())
+                    + dateSize(product.getProductionDate())
+                    + stringSize(product.getTnvedCode())
+                    + stringSize(product.getUitCode())
+                    + stringSize(product.getUituCode());
+        }
+
+        /**
+         * @return сколько значение добавляет к размеру товара, в котором на его месте null.
+         */
+        private static long stringSize(String value) {
+            return value == null ? 0 : utf8Length(value, true) + 2 - NULL_LENGTH;
+        }
+
+        private static long dateSize(LocalDate value) {
+            return value == null ? 0 : DATE_LENGTH - NULL_LENGTH;
+        }
+
+        /**
+         * @param escaped учитывать экранирование, как для значения строкового поля.
+         * @return длина строки в UTF-8.
+         */
+        private static long utf8Length(String value, boolean escaped) {
+            long length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (escaped && (c == '"' || c == '\\' || c == '\n' || c == '\r' || c == '\t' || c == '\b' || c == '\f')) {
+                    length += 2;
+                } else if (escaped && c < 0x20) {
+                    length += 6;
+                } else if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800 || Character.isSurrogate(c)) {
+                    length += 2;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Результат отправки документа, разделённого {@link DocumentSplitter}
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public final static class SplitResult {
+        private final List<SplitPart> parts;
+
+        /**
+         * @return все части созданы.
+         */
+        public boolean isSuccessful() {
+            for (SplitPart part : parts) {
+                if (part.getResult() == null || !part.getResult().isSuccessful()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Часть разделённого документа и результат её отправки
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public final static class SplitPart {
+        private final Document document;
+        /**
+         * Результат создания части или null, если запрос завершился ошибкой.
+         */
+        private final DocumentResult result;
+        private final Throwable error;
+    }
+
+    /**
+     * Настройки {@link DocumentCoalescer}
+     */
+    @Getter
+    @Builder
+    @ToString
+    public static class CoalescerSettings {
+        /**
+         * Максимальное время, которое первый документ пакета ожидает других документов.
+         */
+        @Builder.Default
+        private final Duration maxDelay = Duration.ofMillis(200);
+        /**
+         * Ограничения API на объединённый документ.
+         */
+        @Builder.Default
+        private final DocumentLimits limits = DocumentLimits.builder().build();
+        /**
+         * Приоритет, с которым объединённые документы получают разрешения у {@link RateLimiter}.
+         */
+        @Builder.Default
+        private final Priority priority = Priority.NORMAL;
+        /**
+         * doc_id объединённого документа. Объединённый документ не получает doc_id одного из отправителей,
+         * чтобы не совпасть с отдельной отправкой этого документа.
+         */
+        @Builder.Default
+        private final Supplier<String> batchIdGenerator = () -> UUID.randomUUID().toString();
+    }
+
+    /**
+     * Объединение небольших документов в один запрос. Документы с одинаковыми полями, кроме doc_id
+     * и списка товаров, накапливаются в пакет, пока не истечёт {@link CoalescerSettings#getMaxDelay()}
+     * или следующий документ не превысит {@link DocumentLimits}. Пакет из нескольких документов отправляется
+     * объединённым документом с полями первого документа, doc_id из {@link CoalescerSettings#getBatchIdGenerator()}
+     * и товарами всех документов; пакет из одного документа отправляется как есть. Документ, который сам превышает
+     * {@link DocumentLimits}, не попадает в пакет и отправляется частями через {@link DocumentSplitter}.
+     * <p>
+     * Каждый отправитель получает {@link SplitResult} со своими отправленными документами: объединённым документом,
+     * в который вошли его товары, или частями его документа, и результатом или ошибкой каждого из них.
+     * <p>
+     * Подпись отдельного документа к объединённому не подходит, поэтому объединённый документ подписывается
+     * функцией, переданной в конструктор.
+     */
+    public static class DocumentCoalescer implements Closeable {
+        private final CrptApi api;
+        private final CoalescerSettings settings;
+        private final Function<Document, String> signer;
+        private final DocumentSplitter splitter;
+        private final ScheduledExecutorService scheduler = daemonScheduler("crpt-coalescer");
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<List<Object>, Batch> batches = new HashMap<>();
+        private volatile boolean closed;
+
+        /**
+         * @param api      клиент, через который отправляются объединённые документы.
+         * @param settings настройки объединения.
+         * @param signer   функция получения подписи для объединённого документа.
+         */
+        public DocumentCoalescer(CrptApi api, CoalescerSettings settings, Function<Document, String> signer) {
+            this.api = api;
+            this.settings = settings;
+            this.signer = signer;
+            this.splitter = new DocumentSplitter(settings.getLimits());
+        }
+
+        /**
+         * Добавить документ в пакет совместимых документов.
+         *
+         * @param document данные для документа.
+         * @return документы, в которых были отправлены товары этого документа, и результаты их создания.
+         * @throws IllegalStateException объединение закрыто.
+         */
+        public CompletableFuture<SplitResult> submit(Document document) {
+            checkOpen();
+            List<Product> products = document.getProducts() == null ? List.of() : document.getProducts();
+            long size = 0;
+            for (Product product : products) {
+                size += splitter.estimateSize(product);
+            }
+            DocumentLimits limits = settings.getLimits();
+            long headerSize = splitter.estimateSize(document) - size;
+            if (products.size() > limits.getMaxProducts() || headerSize + size > limits.getMaxBytes()) {
+                return api.createDocumentSplit(document, signer, splitter);
+            }
+            List<Object> key = key(document);
+            CompletableFuture<SplitResult> result = new CompletableFuture<>();
+            Batch full = null;
+            Batch ready = null;
+            lock.lock();
+            try {
+                checkOpen();
+                Batch batch = batches.get(key);
+                if (batch != null && (batch.products.size() + products.size() > limits.getMaxProducts()
+                        || batch.size + size > limits.getMaxBytes())) {
+                    full = remove(batch);
+                    batch = null;
+                }
+                if (batch == null) {
+                    String batchId = settings.getBatchIdGenerator().get();
+                    // пакет из одного документа уходит с его doc_id, из нескольких — с doc_id пакета
+                    long batchHeaderSize = splitter.headerSize(DocumentSplitter.withProducts(document, batchId, null));
+                    batch = new Batch(key, batchId, Math.max(headerSize, batchHeaderSize));
+                    batches.put(key, batch);
+                    Batch created = batch;
+                    batch.timeout = scheduler.schedule(() -> flush(created),
+                            settings.getMaxDelay().toNanos(), TimeUnit.NANOSECONDS);
+                }
+                batch.documents.add(document);
+                batch.products.addAll(products);
+                batch.size += size;
+                batch.results.add(result);
+                if (batch.products.size() >= limits.getMaxProducts() || batch.size >= limits.getMaxBytes()) {
+                    ready = remove(batch);
+                }
+            } finally {
+                lock.unlock();
+            }
+            send(full);
+            send(ready);
+            return result;
+        }
+
+        /**
+         * Отправляет накопленные пакеты, не дожидаясь окончания их времени ожидания.
+         */
+        public void flush() {
+            List<Batch> pending;
+            lock.lock();
+            try {
+                pending = new ArrayList<>(batches.values());
+                pending.forEach(this::remove);
+            } finally {
+                lock.unlock();
+            }
+            pending.forEach(this::send);
+        }
+
+        /**
+         * Отправляет накопленные пакеты и останавливает таймер пакетов. Последующие вызовы {@link #submit}
+         * завершаются {@link IllegalStateException}.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+            flush();
+            scheduler.shutdownNow();
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Объединение документов закрыто");
+            }
+        }
+
+        private void flush(Batch batch) {
+            lock.lock();
+            try {
+                if (batches.get(batch.key) != batch) {
+                    return;
+                }
+                remove(batch);
+            } finally {
+                lock.unlock();
+            }
+            send(batch);
+        }
+
+        private Batch remove(Batch batch) {
+            batches.remove(batch.key);
+            batch.timeout.cancel(false);
+            return batch;
+        }
+
+        private void send(Batch batch) {
+            if (batch == null) {
+                return;
+            }
+            Document first = batch.documents.get(0);
+            Document merged = batch.documents.size() == 1 ? first : new Document(first.getDescription(),
+                    batch.batchId, first.getDocStatus(), first.getDocType(),
+                    first.isImportRequest(), first.getOwnerInn(), first.getParticipantInn(), first.getProducerInn(),
+                    first.getProductionDate(), first.getProductionType(), batch.products, first.getRegDate(),
+                    first.getRegNumber());
+            CompletableFuture.supplyAsync(() -> signer.apply(merged), api.executor)
+                    .thenCompose(signature -> api.createDocumentAsync(merged, signature, settings.getPriority()))
+                    .whenComplete((response, e) -> {
+                        Throwable error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        SplitResult outcome = new SplitResult(List.of(new SplitPart(merged, response, error)));
+                        for (CompletableFuture<SplitResult> result : batch.results) {
+                            result.complete(outcome);
+                        }
+                    });
+        }
+
+        /**
+         * Поля, которые должны совпадать у документов одного пакета.
+         */
+        private static List<Object> key(Document document) {
+            return Arrays.asList(document.getOwnerInn(), document.getProducerInn(), document.getProductionType(),
+                    document.getProductionDate(), document.getDocType(), document.getDocStatus(),
+                    document.isImportRequest(), document.getParticipantInn(), document.getDescription(),
+                    document.getRegDate(), document.getRegNumber());
+        }
+
+        private static final class Batch {
+            private final List<Object> key;
+            private final String batchId;
+            private final List<Document> documents = new ArrayList<>();
+            private final List<Product> products = new ArrayList<>();
+            private final List<CompletableFuture<SplitResult>> results = new ArrayList<>();
+            private long size;
+            private ScheduledFuture<?> timeout;
+
+            private Batch(List<Object> key, String batchId, long headerSize) {
+                this.key = key;
+                this.batchId = batchId;
+                this.size = headerSize;
+            }
+        }
+    }
+
+    /**
+     * Настройки {@link DocumentStatusTracker}
+     */
+    @Getter
+    @Builder
+    @ToString
+    public static class StatusTrackerSettings {
+        /**
+         * Задержка первого запроса статуса после регистрации документа.
+         */
+        @Builder.Default
+        private final Duration initialDelay = Duration.ofSeconds(1);
+        /**
+         * Максимальный интервал между запросами статуса одного документа.
+         */
+        @Builder.Default
+        private final Duration maxDelay = Duration.ofMinutes(1);
+        /**
+         * Множитель интервала после каждого запроса, не давшего окончательного статуса.
+         */
+        @Builder.Default
+        private final double backoffMultiplier = 2.0;
+        /**
+         * Приоритет, с которым запросы статуса получают разрешения у {@link RateLimiter}.
+         */
+        @Builder.Default
+        private final Priority priority = Priority.BULK;
+        /**
+         * Сколько отслеживать документ с момента регистрации. Если за это время статус не стал окончательным,
+         * результат завершается {@link TimeoutException} с последней ошибкой запроса статуса в качестве причины.
+         */
+        @Builder.Default
+        private final Duration timeout = Duration.ofHours(1);
+        /**
+         * Статусы, после которых документ больше не меняется.
+         */
+        @Builder.Default
+        private final Set<String> terminalStatuses = Set.of("CHECKED_OK", "CHECKED_NOT_OK", "PROCESSING_ERROR",
+                "CANCELLED", "ACCEPTED");
+    }
+
+    /**
+     * Статус документа в API
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public final static class DocumentStatus {
+        private final String documentId;
+        private final String status;
+        private final ClientResponse response;
+    }
+
+    /**
+     * Отслеживание статуса обработки созданных документов. Статус каждого документа запрашивается
+     * {@code GET /doc/{id}/info} сначала через {@link StatusTrackerSettings#getInitialDelay()},
+     * а затем со всё большим интервалом, пока он не станет окончательным или не истечёт
+     * {@link StatusTrackerSettings#getTimeout()}.
+     * <p>
+     * Запросы статуса получают разрешения у того же {@link RateLimiter}, что и создание документов, но с более
+     * низким приоритетом. Ожидание интервала, лимита и ответа не занимает потоков: один поток планировщика
+     * только запускает запросы, поэтому количество отслеживаемых документов ограничено лишь памятью.
+     */
+    public static class DocumentStatusTracker implements Closeable {
+        private final CrptApi api;
+        private final StatusTrackerSettings settings;
+        private final ScheduledExecutorService scheduler = daemonScheduler("crpt-status-tracker");
+        private final Map<String, CompletableFuture<DocumentStatus>> tracked = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        /**
+         * @param api      клиент, транспорт и ограничение запросов которого используются для запросов статуса.
+         * @param settings настройки опроса.
+         */
+        public DocumentStatusTracker(CrptApi api, StatusTrackerSettings settings) {
+            this.api = api;
+            this.settings = settings;
+        }
+
+        /**
+         * Начать отслеживание документа. Повторная регистрация того же документа возвращает тот же результат.
+         *
+         * @param documentId идентификатор документа, полученный при создании.
+         * @return окончательный статус документа.
+         * @throws IllegalStateException отслеживание остановлено.
+         */
+        public CompletableFuture<DocumentStatus> track(String documentId) {
+            checkOpen();
+            CompletableFuture<DocumentStatus> existing = tracked.get(documentId);
+            if (existing != null) {
+                return existing;
+            }
+            Tracking tracking = new Tracking(documentId, api.apiAddress + "/doc/" + encodePathSegment(documentId) + "/info",
+                    System.nanoTime() + settings.getTimeout().toNanos());
+            existing = tracked.putIfAbsent(documentId, tracking.result);
+            if (existing != null) {
+                return existing;
+            }
+            // close мог не застать добавленный документ
+            if (closed) {
+                tracked.remove(documentId, tracking.result);
+                tracking.result.cancel(false);
+                checkOpen();
+            }
+            // опрос начинается после добавления, поэтому быстрый ответ удаляет уже добавленный результат
+            schedule(tracking, settings.getInitialDelay().toNanos());
+            return tracking.result;
+        }
+
+        /**
+         * Начать отслеживание созданного документа.
+         *
+         * @param result результат создания документа.
+         * @return окончательный статус документа.
+         * @throws IllegalArgumentException если документ не был создан.
+         */
+        public CompletableFuture<DocumentStatus> track(DocumentResult result) {
+            if (result.getDocumentId() == null) {
+                throw new IllegalArgumentException("Документ не создан: " + result.getError());
+            }
+            return track(result.getDocumentId());
+        }
+
+        /**
+         * @return документы, ещё не получившие окончательного статуса.
+         */
+        public int getPendingCount() {
+            return tracked.size();
+        }
+
+        /**
+         * Останавливает опрос. Незавершённые результаты отменяются.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            scheduler.shutdownNow();
+            tracked.values().forEach(result -> result.cancel(false));
+            tracked.clear();
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Отслеживание статусов остановлено");
+            }
+        }
+
+        private void schedule(Tracking tracking, long delayNanos) {
+            if (closed) {
+                return;
+            }
+            long remaining = tracking.deadline - System.nanoTime();
+            try {
+                scheduler.schedule(() -> poll(tracking, delayNanos), Math.max(0, Math.min(delayNanos, remaining)),
+                        TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // отслеживание остановлено
+            }
+        }
+
+        private void poll(Tracking tracking, long delayNanos) {
+            if (tracking.result.isDone()) {
+                return;
+            }
+            if (!api.httpClient.isAcceptingRequests()) {
+                retry(tracking, delayNanos, new CircuitBreakerOpenException("Транспорт не принимает запросы"));
+                return;
+            }
+            Priority priority = settings.getPriority();
+            long start = System.nanoTime();
+            api.rateLimiter.consumeAsync(priority)
+                    .thenCompose(ignored -> {
+                        api.metrics.recordLimiterWait(priority, System.nanoTime() - start);
+                        return api.httpClient.getAsync(tracking.uri, Map.of());
+                    })
+                    .whenComplete((response, e) -> {
+                        long nextDelay = Math.min((long) (delayNanos * settings.getBackoffMultiplier()),
+                                settings.getMaxDelay().toNanos());
+                        if (response == null) {
+                            retry(tracking, nextDelay, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                            return;
+                        }
+                        api.rateLimiter.onResponse(response);
+                        int statusCode = response.getStatusCode();
+                        String documentId = tracking.documentId;
+                        if (statusCode / 100 == 2) {
+                            String status = api.json.documentStatus(response);
+                            if (status != null && settings.getTerminalStatuses().contains(status)) {
+                                tracked.remove(documentId, tracking.result);
+                                tracking.result.complete(new DocumentStatus(documentId, status, response));
+                                return;
+                            }
+                            retry(tracking, nextDelay, null);
+                            return;
+                        }
+                        IllegalStateException error = new IllegalStateException(
+                                "Ошибка запроса статуса документа " + documentId + ": " + statusCode + " " + response.getBody());
+                        if (statusCode / 100 == 4 && statusCode != 404 && statusCode != 429) {
+                            // 404 означает, что документ ещё не виден в API
+                            tracked.remove(documentId, tracking.result);
+                            tracking.result.completeExceptionally(error);
+                            return;
+                        }
+                        retry(tracking, nextDelay, error);
+                    });
+        }
+
+        /**
+         * Следующий запрос статуса или завершение по истечении времени отслеживания.
+         *
+         * @param error ошибка последнего запроса или null, если статус получен, но ещё не окончательный.
+         */
+        private void retry(Tracking tracking, long delayNanos, Throwable error) {
+            tracking.lastError = error;
+            if (System.nanoTime() - tracking.deadline < 0) {
+                schedule(tracking, delayNanos);
+                return;
+            }
+            TimeoutException timeout = new TimeoutException("Статус документа " + tracking.documentId
+                    + " не стал окончательным за " + settings.getTimeout());
+            timeout.initCause(tracking.lastError);
+            tracked.remove(tracking.documentId, tracking.result);
+            tracking.result.completeExceptionally(timeout);
+        }
+
+        private static String encodePathSegment(String value) {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+        }
+
+        private static final class Tracking {
+            private final String documentId;
+            private final String uri;
+            private final long deadline;
+            private final CompletableFuture<DocumentStatus> result = new CompletableFuture<>();
+            private volatile Throwable lastError;
+
+            private Tracking(String documentId, String uri, long deadline) {
+                this.documentId = documentId;
+                this.uri = uri;
+                this.deadline = deadline;
+            }
+        }
+    }
+
+    /**
+     * Настройки {@link DocumentOutbox}
+     */
+    @Getter
+    @Builder
+    @ToString
+    public static class OutboxSettings {
+        /**
+         * Каталог сегментов журнала.
+         */
+        private final Path directory;
+        /**
+         * Размер файла сегмента. Документ крупнее сегмента записывается в отдельный сегмент своего размера.
+         */
+        @Builder.Default
+        private final int segmentSize = 16 * 1024 * 1024;
+        /**
+         * Приоритет, с которым отправитель журнала получает разрешения у {@link RateLimiter}.
+         */
+        @Builder.Default
+        private final Priority priority = Priority.BULK;
+        /**
+         * Максимальное количество одновременно выполняемых запросов из журнала.
+         */
+        @Builder.Default
+        private final int maxInFlight = 64;
+        /**
+         * Задержка перед первой повторной отправкой после ошибки соединения, 429 или 5xx.
+         * Каждая следующая задержка вдвое больше предыдущей.
+         */
+        @Builder.Default
+        private final Duration retryDelay = Duration.ofSeconds(5);
+        /**
+         * Наибольшая задержка перед повторной отправкой.
+         */
+        @Builder.Default
+        private final Duration maxRetryDelay = Duration.ofMinutes(5);
+        /**
+         * Количество отправок документа, после которого он получает окончательный статус отказа.
+         * Попытки считаются заново после перезапуска процесса.
+         */
+        @Builder.Default
+        private final int maxAttempts = 10;
+        /**
+         * Сбрасывать запись на диск до возврата из {@link DocumentOutbox#enqueue}. Без сброса запись переживает
+         * перезапуск процесса, но не сбой операционной системы.
+         */
+        @Builder.Default
+        private final boolean syncOnEnqueue = false;
+    }
+
+    /**
+     * Журнал исходящих документов на диске. {@link #enqueue} только дописывает документ с подписью
+     * в отображённый в память сегмент, а фоновый поток отправляет документы по мере выдачи разрешений
+     * {@link RateLimiter}, записывает код ответа в журнал и удаляет сегменты, все документы которых отправлены.
+     * Неотправленные документы после перезапуска отправляются заново.
+     * <p>
+     * После ошибки соединения, 429 или 5xx документ отправляется повторно с растущей задержкой, пока не исчерпано
+     * {@link OutboxSettings#getMaxAttempts()}, после чего получает окончательный статус отказа. Документ без doc_id
+     * после ошибки, при которой запрос мог дойти до API, повторно не отправляется, так как API не сможет распознать
+     * повтор: он получает статус неизвестного результата. В обоих случаях результат завершается
+     * {@link OutboxDeliveryException}.
+     * <p>
+     * Запись журнала: длина данных, состояние, код ответа и данные — doc_id, подпись и JSON документа.
+     * Длина записывается последней, поэтому запись, прерванная сбоем, при восстановлении не читается.
+     */
+    public static class DocumentOutbox implements Closeable {
+        private static final int HEADER_SIZE = 8;
+        private static final int STATE_OFFSET = 4;
+        private static final int STATUS_OFFSET = 6;
+        private static final byte PENDING = 1;
+        private static final byte DONE = 2;
+        private static final byte FAILED = 3;
+        private static final byte UNCERTAIN = 4;
+        private static final String SEGMENT_SUFFIX = ".segment";
+        private static final System.Logger LOGGER = System.getLogger(DocumentOutbox.class.getName());
+
+        private final CrptApi api;
+        private final OutboxSettings settings;
+        private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+        private final Semaphore inFlight;
+        private final ReentrantLock appendLock = new ReentrantLock();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Set<Segment> segments = ConcurrentHashMap.newKeySet();
+        private final ScheduledExecutorService retryScheduler = daemonScheduler("crpt-outbox-retry");
+        private final Thread drainer;
+        private long nextSegmentId;
+        private Segment head;
+        private volatile boolean closed;
+
+        /**
+         * Открывает журнал, ставит в очередь неотправленные документы и запускает отправку.
+         *
+         * @param api      клиент, через который отправляются документы.
+         * @param settings настройки журнала.
+         */
+        public DocumentOutbox(CrptApi api, OutboxSettings settings) {
+            this.api = api;
+            this.settings = settings;
+            this.inFlight = new Semaphore(settings.getMaxInFlight());
+            try {
+                Files.createDirectories(settings.getDirectory());
+                recover();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            drainer = new Thread(this::drain, "crpt-outbox-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        /**
+         * Записать документ в журнал для отправки.
+         *
+         * @param document  данные для документа.
+         * @param signature подпись для документа.
+         * @return результат создания документа, который будет получен после отправки этим экземпляром журнала.
+         */
+        public CompletableFuture<DocumentResult> enqueue(Document document, String signature) {
+            if (closed) {
+                throw new IllegalStateException("Журнал закрыт");
+            }
+            long start = System.nanoTime();
+            byte[] json = api.json.serialize(document).getBytes(StandardCharsets.UTF_8);
+            api.metrics.recordSerialization(System.nanoTime() - start, json.length);
+            byte[] docId = document.getDocId() == null ? null : document.getDocId().getBytes(StandardCharsets.UTF_8);
+            byte[] sign = signature.getBytes(StandardCharsets.UTF_8);
+            int length = Integer.BYTES * 2 + (docId == null ? 0 : docId.length) + sign.length + json.length;
+            Entry entry;
+            appendLock.lock();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("Журнал закрыт");
+                }
+                if (head.buffer.capacity() - head.writePosition < HEADER_SIZE + length + Integer.BYTES) {
+                    Segment sealed = head;
+                    head = createSegment(Math.max(settings.getSegmentSize(), HEADER_SIZE + length + Integer.BYTES));
+                    seal(sealed);
+                }
+                int offset = head.writePosition;
+                ByteBuffer buffer = head.buffer;
+                buffer.put(offset + STATE_OFFSET, PENDING);
+                int position = offset + HEADER_SIZE;
+                buffer.putInt(position, docId == null ? -1 : docId.length);
+                position += Integer.BYTES;
+                if (docId != null) {
+                    buffer.put(position, docId);
+                    position += docId.length;
+                }
+                buffer.putInt(position, sign.length);
+                position += Integer.BYTES;
+                buffer.put(position, sign);
+                position += sign.length;
+                buffer.put(position, json);
+                buffer.putInt(offset, length);
+                if (settings.isSyncOnEnqueue()) {
+                    head.buffer.force(offset, HEADER_SIZE + length);
+                }
+                head.writePosition = offset + HEADER_SIZE + length;
+                head.pending.incrementAndGet();
+                entry = new Entry(head, offset, position, json.length, signature, docId != null);
+            } finally {
+                appendLock.unlock();
+            }
+            pending.incrementAndGet();
+            queue.add(entry);
+            return entry.result;
+        }
+
+        /**
+         * @return документы в журнале, ещё не получившие окончательного ответа.
+         */
+        public int getPendingCount() {
+            return pending.get();
+        }
+
+        /**
+         * Останавливает отправку, дожидается ответов на уже отправленные документы и освобождает отображения
+         * сегментов. Неотправленные документы остаются в журнале до следующего открытия.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            drainer.interrupt();
+            try {
+                drainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            retryScheduler.shutdownNow();
+            // тела отправленных запросов читаются из сегментов, а ответы записываются в них
+            inFlight.acquireUninterruptibly(settings.getMaxInFlight());
+            appendLock.lock();
+            try {
+                for (Segment segment : segments) {
+                    segment.buffer.force();
+                    unmap(segment.buffer);
+                }
+                segments.clear();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+
+        private void drain() {
+            while (!closed) {
+                CompletableFuture<Void> permit = null;
+                try {
+                    Entry entry = queue.take();
+                    if (!api.httpClient.isAcceptingRequests()) {
+                        retry(entry);
+                        continue;
+                    }
+                    inFlight.acquire();
+                    long start = System.nanoTime();
+                    permit = api.rateLimiter.consumeAsync(settings.getPriority());
+                    try {
+                        permit.get();
+                    } catch (ExecutionException e) {
+                        inFlight.release();
+                        retry(entry);
+                        continue;
+                    } catch (InterruptedException e) {
+                        inFlight.release();
+                        throw e;
+                    }
+                    api.metrics.recordLimiterWait(settings.getPriority(), System.nanoTime() - start);
+                    entry.attempts++;
+                    CompletableFuture<ClientResponse> sent;
+                    try {
+                        sent = api.send(new MappedBody(entry), entry.signature, settings.getPriority());
+                    } catch (RuntimeException e) {
+                        // ошибка до отправки не должна останавливать поток отправки, удерживающий разрешение inFlight
+                        inFlight.release();
+                        failed(entry, null, e, false);
+                        continue;
+                    }
+                    sent.whenComplete((response, e) -> {
+                        try {
+                            if (response != null && response.getStatusCode() != 429 && response.getStatusCode() < 500) {
+                                complete(entry, response);
+                            } else {
+                                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                                failed(entry, response, cause, response != null || !isNotSent(cause));
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    if (permit != null) {
+                        permit.cancel(false);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void retry(Entry entry) {
+            retry(entry, settings.getRetryDelay().toNanos());
+        }
+
+        /**
+         * Документ, повтор которого не удалось запланировать из-за закрытия журнала, остаётся в журнале
+         * до следующего открытия.
+         */
+        private void retry(Entry entry, long delayNanos) {
+            if (closed) {
+                return;
+            }
+            try {
+                retryScheduler.schedule(() -> queue.add(entry), delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // журнал закрывается
+            }
+        }
+
+        /**
+         * Ответ 429 или 5xx либо ошибка отправки.
+         *
+         * @param sent запрос мог дойти до API.
+         */
+        private void failed(Entry entry, ClientResponse response, Throwable error, boolean sent) {
+            boolean uncertain = response == null && sent && !entry.hasDocId;
+            if (uncertain || entry.attempts >= settings.getMaxAttempts()) {
+                LOGGER.log(System.Logger.Level.WARNING, "Документ из журнала не отправлен после попыток: "
+                        + entry.attempts + (uncertain ? ", результат неизвестен" : ""), error);
+                settle(entry, uncertain ? UNCERTAIN : FAILED, response == null ? 0 : response.getStatusCode());
+                entry.result.completeExceptionally(new OutboxDeliveryException(
+                        uncertain ? "Результат отправки документа без doc_id неизвестен" : "Попытки отправки документа исчерпаны",
+                        error, response, entry.attempts, uncertain));
+                deleteIfSent(entry.segment);
+                return;
+            }
+            long delay = settings.getRetryDelay().toNanos() << Math.min(entry.attempts - 1, 30);
+            retry(entry, Math.min(settings.getMaxRetryDelay().toNanos(), delay < 0 ? Long.MAX_VALUE : delay));
+        }
+
+        private void complete(Entry entry, ClientResponse response) {
+            settle(entry, DONE, response.getStatusCode());
+            try {
+                entry.result.complete(api.json.documentResult(response));
+            } catch (RuntimeException e) {
+                entry.result.completeExceptionally(e);
+            }
+            deleteIfSent(entry.segment);
+        }
+
+        /**
+         * Окончательное состояние записи: при восстановлении она больше не отправляется.
+         */
+        private void settle(Entry entry, byte state, int statusCode) {
+            entry.segment.buffer.putShort(entry.offset + STATUS_OFFSET, (short) statusCode);
+            entry.segment.buffer.put(entry.offset + STATE_OFFSET, state);
+            pending.decrementAndGet();
+        }
+
+        private void deleteIfSent(Segment segment) {
+            if (segment.pending.decrementAndGet() == 0 && segment.sealed) {
+                delete(segment);
+            }
+        }
+
+        private void seal(Segment segment) {
+            segment.sealed = true;
+            if (segment.pending.get() == 0) {
+                delete(segment);
+            }
+        }
+
+        /**
+         * Сжатие журнала: сегмент, в который больше не пишут и все документы которого отправлены, удаляется целиком.
+         * Сегмент, который не удалось удалить, содержит только отправленные документы и удаляется при следующем открытии.
+         */
+        private void delete(Segment segment) {
+            if (segment.deleted.compareAndSet(false, true)) {
+                segments.remove(segment);
+                unmap(segment.buffer);
+                try {
+                    Files.deleteIfExists(segment.path);
+                } catch (IOException e) {
+                    LOGGER.log(System.Logger.Level.WARNING, "Не удалось удалить сегмент журнала " + segment.path, e);
+                }
+            }
+        }
+
+        /**
+         * Читает сегменты по порядку и ставит в очередь неотправленные документы. Запись всегда продолжается
+         * в новом сегменте, а прочитанные сегменты только ожидают отправки своих документов.
+         */
+        private void recover() throws IOException {
+            List<Path> paths = new ArrayList<>();
+            try (Stream<Path> files = Files.list(settings.getDirectory())) {
+                files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().forEach(paths::add);
+            }
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                nextSegmentId = Math.max(nextSegmentId, id + 1);
+                Segment segment;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+                }
+                segments.add(segment);
+                ByteBuffer buffer = segment.buffer;
+                int offset = 0;
+                int length;
+                while (offset + HEADER_SIZE <= buffer.capacity() && (length = buffer.getInt(offset)) > 0) {
+                    if (buffer.get(offset + STATE_OFFSET) == PENDING) {
+                        int position = offset + HEADER_SIZE;
+                        int docIdLength = buffer.getInt(position);
+                        position += Integer.BYTES + Math.max(docIdLength, 0);
+                        byte[] sign = new byte[buffer.getInt(position)];
+                        position += Integer.BYTES;
+                        buffer.get(position, sign);
+                        position += sign.length;
+                        segment.pending.incrementAndGet();
+                        pending.incrementAndGet();
+                        queue.add(new Entry(segment, offset, position, offset + HEADER_SIZE + length - position,
+                                new String(sign, StandardCharsets.UTF_8), docIdLength >= 0));
+                    }
+                    offset += HEADER_SIZE + length;
+                }
+                seal(segment);
+            }
+            head = createSegment(settings.getSegmentSize());
+        }
+
+        private Segment createSegment(int size) {
+            Path path = settings.getDirectory().resolve(String.format("%020d%s", nextSegmentId++, SEGMENT_SUFFIX));
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Segment segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                segments.add(segment);
+                return segment;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static final class Segment {
+            private final Path path;
+            private final MappedByteBuffer buffer;
+            private final AtomicInteger pending = new AtomicInteger();
+            private final AtomicBoolean deleted = new AtomicBoolean();
+            private volatile boolean sealed;
+            private int writePosition;
+
+            private Segment(Path path, MappedByteBuffer buffer) {
+                this.path = path;
+                this.buffer = buffer;
+            }
+        }
+
+        private static final class Entry {
+            private final Segment segment;
+            private final int offset;
+            private final int jsonOffset;
+            private final int jsonLength;
+            private final String signature;
+            private final boolean hasDocId;
+            private final CompletableFuture<DocumentResult> result = new CompletableFuture<>();
+            /**
+             * Изменяется потоком отправки; чтение в обработчике ответа упорядочено отправкой запроса.
+             */
+            private int attempts;
+
+            private Entry(Segment segment, int offset, int jsonOffset, int jsonLength, String signature, boolean hasDocId) {
+                this.segment = segment;
+                this.offset = offset;
+                this.jsonOffset = jsonOffset;
+                this.jsonLength = jsonLength;
+                this.signature = signature;
+                this.hasDocId = hasDocId;
+            }
+        }
+
+        /**
+         * Тело запроса, читаемое частями прямо из сегмента журнала.
+         */
+        private static final class MappedBody implements RequestBody {
+            private static final int CHUNK_SIZE = 16 * 1024;
+
+            private final Entry entry;
+            private final byte[] chunk;
+            private int position;
+
+            private MappedBody(Entry entry) {
+                this.entry = entry;
+                this.chunk = new byte[Math.min(CHUNK_SIZE, entry.jsonLength)];
+            }
+
+            @Override
+            public boolean writeNext(OutputStream out) throws IOException {
+                int length = Math.min(chunk.length, entry.jsonLength - position);
+                entry.segment.buffer.get(entry.jsonOffset + position, chunk, 0, length);
+                out.write(chunk, 0, length);
+                position += length;
+                return position < entry.jsonLength;
+            }
+
+            @Override
+            public long getContentLength() {
+                return entry.jsonLength;
+            }
+
+            @Override
+            public RequestBody copy() {
+                return new MappedBody(entry);
+            }
+        }
+    }
+
+    /**
+     * Класс для добавления абстракции над библиотекой HTTP клиента
+     */
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    public final static class ClientResponse {
+        private final int statusCode;
+        private final String body;
+        private final Map<String, String> headers;
+        /**
+         * Тело ответа превысило допустимый размер и было обрезано.
+         */
+        private final boolean truncated;
+
+        public Map<String, String> getHeaders() {
+            return new HashMap<>(headers);
+        }
+
+        /**
+         * @param name имя заголовка без учёта регистра.
+         * @return значение заголовка или null, если его нет.
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (header.getKey().equalsIgnoreCase(name)) {
+                    return header.getValue();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Результат создания документа: идентификатор созданного документа или ошибка API
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public final static class DocumentResult {
+        private final ClientResponse response;
+        /**
+         * Идентификатор документа из поля value ответа или null, если документ не создан.
+         */
+        private final String documentId;
+        /**
+         * Ошибка из тела ответа или null, если её нет.
+         */
+        private final ApiError error;
+        /**
+         * Длительности этапов обработки запроса на сервере из заголовка Server-Timing по их именам.
+         */
+        private final Map<String, Duration> serverTiming;
+
+        public int getStatusCode() {
+            return response.getStatusCode();
+        }
+
+        /**
+         * @return получен ответ с кодом 2xx без ошибки в теле.
+         */
+        public boolean isSuccessful() {
+            return response.getStatusCode() / 100 == 2 && error == null;
+        }
+
+        public Map<String, Duration> getServerTiming() {
+            return new LinkedHashMap<>(serverTiming);
+        }
+    }
+
+    /**
+     * Ошибка в теле ответа API
+     */
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    public final static class ApiError {
+        private final String code;
+        private final String errorMessage;
+        private final String description;
+    }
+
+    /**
+     * Интерфейс для добавления абстракции над библиотекой HTTP клиента
+     */
+    public interface HttpClient extends Closeable {
+        /**
+         * Выполнить post HTTP-запрос
+         *
+         * @param uri     адресс запроса.
+         * @param body    тело запроса.
+         * @param headers заголовки запроса.
+         */
+        ClientResponse post(String uri, String body, Map<String, String> headers);
+
+        /**
+         * Выполнить post HTTP-запрос без блокировки вызывающего потока
+         *
+         * @param uri     адресс запроса.
+         * @param body    тело запроса.
+         * @param headers заголовки запроса.
+         */
+        default CompletableFuture<ClientResponse> postAsync(String uri, String body, Map<String, String> headers) {
+            return postAsync(uri, new ByteArrayBody(body.getBytes(StandardCharsets.UTF_8)), headers);
+        }
+
+        /**
+         * Выполнить post HTTP-запрос без блокировки вызывающего потока.
+         * Тело формируется частями по мере записи в соединение.
+         *
+         * @param uri     адресс запроса.
+         * @param body    тело запроса.
+         * @param headers заголовки запроса.
+         */
+        CompletableFuture<ClientResponse> postAsync(String uri, RequestBody body, Map<String, String> headers);
+
+        /**
+         * Выполнить post HTTP-запрос документа с заданным приоритетом. Приоритет нужен транспортам, которые сами
+         * получают разрешения у {@link RateLimiter}, например, для повторных попыток; остальные его не используют.
+         *
+         * @param uri      адресс запроса.
+         * @param body     тело запроса.
+         * @param headers  заголовки запроса.
+         * @param priority приоритет документа.
+         */
+        default CompletableFuture<ClientResponse> postAsync(String uri, RequestBody body, Map<String, String> headers,
+                                                            Priority priority) {
+            return postAsync(uri, body, headers);
+        }
+
+        /**
+         * Выполнить get HTTP-запрос
+         *
+         * @param uri     адресс запроса.
+         * @param headers заголовки запроса.
+         */
+        ClientResponse get(String uri, Map<String, String> headers);
+
+        /**
+         * Выполнить get HTTP-запрос без блокировки вызывающего потока.
+         * Реализация по умолчанию выполняет блокирующий {@link #get} в общем пуле.
+         *
+         * @param uri     адресс запроса.
+         * @param headers заголовки запроса.
+         */
+        default CompletableFuture<ClientResponse> getAsync(String uri, Map<String, String> headers) {
+            return CompletableFuture.supplyAsync(() -> get(uri, headers));
+        }
+
+        /**
+         * Состояние пула соединений, если транспорт его использует.
+         */
+        default ConnectionPoolStats getPoolStats() {
+            return ConnectionPoolStats.EMPTY;
+        }
+
+        /**
+         * Пока транспорт не принимает запросы, {@link CrptApi} отклоняет их, не запрашивая разрешения
+         * у {@link RateLimiter}.
+         *
+         * @return транспорт принимает запросы.
+         */
+        default boolean isAcceptingRequests() {
+            return true;
+        }
+    }
+
+    /**
+     * Тело запроса в формате JSON, которое транспорт запрашивает частями по мере отправки.
+     * Так в памяти находится только очередная часть, а не всё тело целиком.
+     */
+    public interface RequestBody {
+        /**
+         * Записать следующую часть тела.
+         *
+         * @param out поток, в который записывается часть.
+         * @return false, если тело записано полностью.
+         */
+        boolean writeNext(OutputStream out) throws IOException;
+
+        /**
+         * @return длина тела в байтах или -1, если она неизвестна и тело передаётся частями (chunked).
+         */
+        long getContentLength();
+
+        /**
+         * @return новое тело с тем же содержимым для повторной отправки или null, если тело нельзя повторить.
+         */
+        default RequestBody copy() {
+            return null;
+        }
+
+        /**
+         * Готова ли следующая часть. Транспорт проверяет готовность перед каждым {@link #writeNext} и, пока части нет,
+         * освобождает свой поток вместо ожидания внутри writeNext.
+         *
+         * @param action действие, которое будет вызвано один раз, когда часть станет готова, если она не готова сейчас.
+         * @return true, если часть готова и action не будет вызвано.
+         */
+        default boolean whenReady(Runnable action) {
+            return true;
+        }
+    }
+
+    /**
+     * Тело запроса из готового массива байт
+     */
+    @AllArgsConstructor
+    public static class ByteArrayBody implements RequestBody {
+        private final byte[] content;
+
+        @Override
+        public boolean writeNext(OutputStream out) throws IOException {
+            out.write(content);
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return content.length;
+        }
+
+        @Override
+        public RequestBody copy() {
+            return this;
+        }
+    }
+
+    /**
+     * Снимок состояния пула соединений
+     */
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    public final static class ConnectionPoolStats {
+        public static final ConnectionPoolStats EMPTY = new ConnectionPoolStats(0, 0, 0, 0);
+        /**
+         * Значение показателя, который транспорт не сообщает.
+         */
+        public static final int UNSUPPORTED = -1;
+
+        /**
+         * Соединения, занятые запросами.
+         */
+        private final int leased;
+        /**
+         * Запросы, ожидающие свободного соединения.
+         */
+        private final int pending;
+        /**
+         * Свободные keep-alive соединения.
+         */
+        private final int available;
+        /**
+         * Максимальный размер пула.
+         */
+        private final int max;
+    }
+
+    /**
+     * Настройки транспорта {@link ApacheHttpClient}.
+     * Все запросы идут на один хост, поэтому лимит на маршрут по умолчанию равен общему лимиту.
+     */
+    @Getter
+    @Builder
+    @ToString
+    public static class ConnectionPoolSettings {
+        @Builder.Default
+        private final int maxTotal = 50;
+        @Builder.Default
+        private final int maxPerRoute = 50;
+        @Builder.Default
+        private final Duration connectTimeout = Duration.ofSeconds(10);
+        @Builder.Default
+        private final Duration socketTimeout = Duration.ofSeconds(60);
+        /**
+         * Время ожидания свободного соединения из пула.
+         */
+        @Builder.Default
+        private final Duration connectionRequestTimeout = Duration.ofSeconds(60);
+        /**
+         * Соединения, простаивающие дольше, закрываются фоновой задачей.
+         */
+        @Builder.Default
+        private final Duration idleTimeout = Duration.ofSeconds(30);
+        @Builder.Default
+        private final Duration evictionInterval = Duration.ofSeconds(5);
+        /**
+         * Время жизни TLS-сессии в кэше для её повторного использования без полного рукопожатия.
+         */
+        @Builder.Default
+        private final Duration tlsSessionTimeout = Duration.ofHours(1);
+        @Builder.Default
+        private final int ioThreads = Runtime.getRuntime().availableProcessors();
+        /**
+         * Максимальный размер тела ответа в памяти, остаток вычитывается из соединения и отбрасывается.
+         */
+        @Builder.Default
+        private final int maxResponseBodyBytes = 64 * 1024;
+        /**
+         * Сжатие тела запроса. По умолчанию запросы не сжимаются.
+         */
+        @Builder.Default
+        private final ContentEncoding requestEncoding = ContentEncoding.IDENTITY;
+        /**
+         * Тело короче порога отправляется без сжатия. Тело неизвестной длины, например, документ с товарами
+         * из итератора, сжимается всегда.
+         */
+        @Builder.Default
+        private final int compressionThreshold = 8 * 1024;
+        /**
+         * Уровень сжатия от 1 до 9. Повторяющийся JSON сжимается в разы уже на минимальном уровне.
+         */
+        @Builder.Default
+        private final int compressionLevel = Deflater.BEST_SPEED;
+        /**
+         * Запрашивать у сервера сжатые ответы и распаковывать их.
+         */
+        @Builder.Default
+        private final boolean decompressResponses = true;
+    }
+
+    /**
+     * Кодирование тела HTTP-запроса
+     */
+    @Getter
+    @AllArgsConstructor
+    public enum ContentEncoding {
+        IDENTITY("identity"),
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        /**
+         * Значение заголовка Content-Encoding.
+         */
+        private final String token;
+
+        /**
+         * @param value значение заголовка Content-Encoding ответа.
+         * @return кодирование, которое умеет распаковывать клиент, иначе {@link #IDENTITY}.
+         */
+        public static ContentEncoding of(String value) {
+            String token = value.trim();
+            if (token.equalsIgnoreCase("gzip") || token.equalsIgnoreCase("x-gzip")) {
+                return GZIP;
+            }
+            return token.equalsIgnoreCase("deflate") ? DEFLATE : IDENTITY;
+        }
+    }
+
+    /**
+     * Реализация http клиента через библиотеку Apache HttpComponents
+     */
+    public static class ApacheHttpClient implements HttpClient {
+        private final PoolingNHttpClientConnectionManager connectionManager;
+        private final CloseableHttpAsyncClient httpClient;
+        private final ScheduledExecutorService evictor;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final int maxResponseBodyBytes;
+        private final ContentEncoding requestEncoding;
+        private final int compressionThreshold;
+        private final int compressionLevel;
+        private final boolean decompressResponses;
+
+        public ApacheHttpClient() {
+            this(ConnectionPoolSettings.builder().build());
+        }
+
+        public ApacheHttpClient(ConnectionPoolSettings settings) {
+            SSLContext sslContext = SSLContexts.createDefault();
+            sslContext.getClientSessionContext().setSessionTimeout((int) settings.getTlsSessionTimeout().toSeconds());
+            try {
+                connectionManager = new PoolingNHttpClientConnectionManager(
+                        new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                                .setIoThreadCount(settings.getIoThreads())
+                                .setConnectTimeout((int) settings.getConnectTimeout().toMillis())
+                                .setSoTimeout((int) settings.getSocketTimeout().toMillis())
+                                .setSoKeepAlive(true)
+                                .setTcpNoDelay(true)
+                                .build()),
+                        RegistryBuilder.<SchemeIOSessionStrategy>create()
+                                .register("http", NoopIOSessionStrategy.INSTANCE)
+                                .register("https", new SSLIOSessionStrategy(sslContext, SSLIOSessionStrategy.getDefaultHostnameVerifier()))
+                                .build());
+            } catch (IOReactorException e) {
+                throw new RuntimeException(e);
+            }
+            maxResponseBodyBytes = settings.getMaxResponseBodyBytes();
+            requestEncoding = settings.getRequestEncoding();
+            compressionThreshold = settings.getCompressionThreshold();
+            compressionLevel = settings.getCompressionLevel();
+            decompressResponses = settings.isDecompressResponses();
+            connectionManager.setMaxTotal(settings.getMaxTotal());
+            connectionManager.setDefaultMaxPerRoute(settings.getMaxPerRoute());
+            httpClient = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(RequestConfig.custom()
+                            .setConnectTimeout((int) settings.getConnectTimeout().toMillis())
+                            .setSocketTimeout((int) settings.getSocketTimeout().toMillis())
+                            .setConnectionRequestTimeout((int) settings.getConnectionRequestTimeout().toMillis())
+                            .build())
+                    .build();
+            evictor = daemonScheduler("crpt-connection-evictor");
+            long idleMillis = settings.getIdleTimeout().toMillis();
+            long intervalMillis = settings.getEvictionInterval().toMillis();
+            evictor.scheduleWithFixedDelay(() -> {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            httpClient.start();
+        }
+
+        @Override
+        public ClientResponse post(String uri, String body, Map<String, String> headers) {
+            return await(postAsync(uri, body, headers));
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> postAsync(String uri, RequestBody body, Map<String, String> headers) {
+            HttpPost httpPost = new HttpPost(uri);
+            try {
+                httpPost.setEntity(new StreamingEntity(encode(httpPost, body)));
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            if (headers != null && !headers.isEmpty()) {
+                headers.forEach(httpPost::setHeader);
+            }
+            return execute(httpPost);
+        }
+
+        @Override
+        public ClientResponse get(String uri, Map<String, String> headers) {
+            return await(getAsync(uri, headers));
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> getAsync(String uri, Map<String, String> headers) {
+            HttpGet httpGet = new HttpGet(uri);
+            if (headers != null && !headers.isEmpty()) {
+                headers.forEach(httpGet::setHeader);
+            }
+            return execute(httpGet);
+        }
+
+        @Override
+        public ConnectionPoolStats getPoolStats() {
+            PoolStats stats = connectionManager.getTotalStats();
+            // NIO-пул считает ожидающими только устанавливаемые соединения, а не очередь запросов,
+            // поэтому очередь вычисляется по количеству выполняемых запросов.
+            int waiting = Math.max(0, inFlight.get() - stats.getLeased());
+            return new ConnectionPoolStats(stats.getLeased(), waiting, stats.getAvailable(), stats.getMax());
+        }
+
+        @Override
+        public void close() throws IOException {
+            evictor.shutdownNow();
+            httpClient.close();
+        }
+
+        /**
+         * Тело не короче порога и тело неизвестной длины сжимаются по мере отправки.
+         */
+        private RequestBody encode(HttpPost request, RequestBody body) {
+            RequestBody encoded = encode(body, requestEncoding, compressionThreshold, compressionLevel);
+            if (encoded instanceof EncodedBody) {
+                request.setHeader("Content-Encoding", requestEncoding.getToken());
+            }
+            return encoded;
+        }
+
+        /**
+         * Решение принимается только по известной длине: чтение начала тела неизвестной длины до порога
+         * блокировало бы поток, вызвавший отправку, до подготовки частей тела.
+         *
+         * @return тело, сжимаемое при отправке, если оно не короче порога или его длина неизвестна,
+         * иначе тело без сжатия.
+         */
+        private static RequestBody encode(RequestBody body, ContentEncoding requestEncoding, int compressionThreshold,
+                                          int compressionLevel) {
+            if (requestEncoding == ContentEncoding.IDENTITY) {
+                return body;
+            }
+            long length = body.getContentLength();
+            if (length >= 0 && length < compressionThreshold) {
+                return body;
+            }
+            return new EncodedBody(body, requestEncoding, compressionLevel);
+        }
+
+        private CompletableFuture<ClientResponse> execute(HttpUriRequest request) {
+            CompletableFuture<ClientResponse> result = new CompletableFuture<>();
+            if (decompressResponses && !request.containsHeader("Accept-Encoding")) {
+                request.setHeader("Accept-Encoding", "gzip, deflate");
+            }
+            inFlight.incrementAndGet();
+            result.whenComplete((response, e) -> inFlight.decrementAndGet());
+            httpClient.execute(HttpAsyncMethods.create(request),
+                    new BoundedResponseConsumer(maxResponseBodyBytes, decompressResponses), new FutureCallback<>() {
+                @Override
+                public void completed(ClientResponse response) {
+                    result.complete(response);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    result.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    result.cancel(false);
+                }
+            });
+            return result;
+        }
+
+        private static ClientResponse await(CompletableFuture<ClientResponse> response) {
+            try {
+                return response.join();
+            } catch (CompletionException e) {
+                throw unwrap(e.getCause());
+            }
+        }
+
+        private static ClientResponse convertApacheHttpResponse(HttpResponse response, String content, boolean truncated) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            Map<String, String> responseHeaders = new HashMap<>();
+            for (Header header : response.getAllHeaders()) {
+                responseHeaders.put(header.getName(), header.getValue());
+            }
+            return new ClientResponse(statusCode, content, responseHeaders, truncated);
+        }
+
+        /**
+         * Сущность запроса, которая запрашивает у {@link RequestBody} очередную часть,
+         * только когда предыдущая полностью записана в сокет.
+         */
+        private static final class StreamingEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+            private final RequestBody body;
+            private final ChunkBuffer chunk = new ChunkBuffer();
+            private ByteBuffer pending;
+            private boolean finished;
+
+            private StreamingEntity(RequestBody body) {
+                this.body = body;
+                setContentType(ContentType.APPLICATION_JSON.toString());
+                setChunked(body.getContentLength() < 0);
+            }
+
+            @Override
+            public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+                while (true) {
+                    if (pending != null && pending.hasRemaining()) {
+                        encoder.write(pending);
+                        if (pending.hasRemaining()) {
+                            return;
+                        }
+                    }
+                    if (finished) {
+                        encoder.complete();
+                        return;
+                    }
+                    // вывод приостанавливается до проверки, чтобы возобновление из другого потока не потерялось
+                    ioControl.suspendOutput();
+                    if (!body.whenReady(ioControl::requestOutput)) {
+                        return;
+                    }
+                    ioControl.requestOutput();
+                    chunk.reset();
+                    try {
+                        finished = !body.writeNext(chunk);
+                    } catch (RuntimeException e) {
+                        throw new IOException(e);
+                    }
+                    pending = chunk.toByteBuffer();
+                }
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+
+            @Override
+            public long getContentLength() {
+                return body.getContentLength();
+            }
+
+            @Override
+            public InputStream getContent() {
+                throw new UnsupportedOperationException("Тело запроса формируется при отправке");
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                while (body.writeNext(out)) {
+                    // тело записывается частями до конца
+                }
+            }
+
+            @Override
+            public boolean isStreaming() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+                pending = null;
+            }
+        }
+
+        /**
+         * Тело, сжимаемое по мере отправки. Сжатые байты каждой части исходного тела пишутся в поток текущей части,
+         * поэтому тело целиком в памяти не собирается.
+         */
+        private static final class EncodedBody extends OutputStream implements RequestBody {
+            private final RequestBody source;
+            private final ContentEncoding encoding;
+            private final int level;
+            private DeflaterOutputStream encoder;
+            private OutputStream out;
+
+            private EncodedBody(RequestBody source, ContentEncoding encoding, int level) {
+                this.source = source;
+                this.encoding = encoding;
+                this.level = level;
+            }
+
+            @Override
+            public boolean writeNext(OutputStream out) throws IOException {
+                this.out = out;
+                if (encoder == null) {
+                    encoder = createEncoder();
+                }
+                if (source.writeNext(encoder)) {
+                    return true;
+                }
+                encoder.close();
+                return false;
+            }
+
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public RequestBody copy() {
+                RequestBody copy = source.copy();
+                return copy == null ? null : new EncodedBody(copy, encoding, level);
+            }
+
+            @Override
+            public boolean whenReady(Runnable action) {
+                return source.whenReady(action);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // поток части закрывает транспорт
+            }
+
+            private DeflaterOutputStream createEncoder() throws IOException {
+                if (encoding == ContentEncoding.GZIP) {
+                    return new GZIPOutputStream(this, 8 * 1024) {
+                        {
+                            def.setLevel(level);
+                        }
+                    };
+                }
+                return new DeflaterOutputStream(this, new Deflater(level), 8 * 1024) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+            }
+        }
+
+        /**
+         * Буфер очередной части тела, отдающий накопленные байты без копирования.
+         */
+        private static final class ChunkBuffer extends ByteArrayOutputStream {
+            private ChunkBuffer() {
+                super(16 * 1024);
+            }
+
+            private ByteBuffer toByteBuffer() {
+                return ByteBuffer.wrap(buf, 0, count);
+            }
+        }
+
+        /**
+         * Потребитель ответа, читающий тело по мере поступления в буфер ограниченного размера.
+         * Тело всегда вычитывается до конца, поэтому соединение возвращается в пул.
+         * Сжатое тело распаковывается также с ограничением размера.
+         */
+        private static final class BoundedResponseConsumer extends AbstractAsyncResponseConsumer<ClientResponse> {
+            private final int maxBodyBytes;
+            private final boolean decompress;
+            private final ByteBuffer chunk = ByteBuffer.allocate(8 * 1024);
+            private HttpResponse response;
+            private ByteArrayOutputStream body;
+            private Charset charset = StandardCharsets.UTF_8;
+            private ContentEncoding encoding = ContentEncoding.IDENTITY;
+            private boolean truncated;
+
+            private BoundedResponseConsumer(int maxBodyBytes, boolean decompress) {
+                this.maxBodyBytes = maxBodyBytes;
+                this.decompress = decompress;
+            }
+
+            @Override
+            protected void onResponseReceived(HttpResponse response) {
+                this.response = response;
+            }
+
+            @Override
+            protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+                long length = entity.getContentLength();
+                body = new ByteArrayOutputStream((int) Math.min(length < 0 ? chunk.capacity() : length, maxBodyBytes));
+                if (contentType != null && contentType.getCharset() != null) {
+                    charset = contentType.getCharset();
+                }
+                Header contentEncoding = entity.getContentEncoding();
+                if (decompress && contentEncoding != null) {
+                    encoding = ContentEncoding.of(contentEncoding.getValue());
+                }
+            }
+
+            @Override
+            protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+                int read;
+                while ((read = decoder.read(chunk)) > 0) {
+                    int accepted = Math.min(read, maxBodyBytes - body.size());
+                    if (accepted > 0) {
+                        body.write(chunk.array(), 0, accepted);
+                    }
+                    truncated |= accepted < read;
+                    chunk.clear();
+                }
+            }
+
+            @Override
+            protected ClientResponse buildResult(HttpContext context) throws IOException {
+                byte[] content = body == null ? new byte[0] : body.toByteArray();
+                if (encoding != ContentEncoding.IDENTITY && content.length > 0) {
+                    ByteArrayOutputStream decoded = new ByteArrayOutputStream(Math.min(content.length * 4, maxBodyBytes));
+                    truncated |= decode(content, content.length, encoding, decoded, maxBodyBytes);
+                    content = decoded.toByteArray();
+                }
+                return convertApacheHttpResponse(response, new String(content, charset), truncated);
+            }
+
+            /**
+             * Если сжатое тело было обрезано, в decoded остаётся то, что успело распаковаться.
+             *
+             * @return распакованное тело превысило допустимый размер или сжатое тело обрезано.
+             */
+            private static boolean decode(byte[] content, int length, ContentEncoding encoding,
+                                          ByteArrayOutputStream decoded, int maxBodyBytes) throws IOException {
+                byte[] buffer = new byte[8 * 1024];
+                try (InputStream in = encoding == ContentEncoding.GZIP
+                        ? new GZIPInputStream(new ByteArrayInputStream(content, 0, length))
+                        : new InflaterInputStream(new ByteArrayInputStream(content, 0, length))) {
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        int accepted = Math.min(read, maxBodyBytes - decoded.size());
+                        decoded.write(buffer, 0, accepted);
+                        if (accepted < read) {
+                            return true;
+                        }
+                    }
+                } catch (EOFException e) {
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            protected void releaseResources() {
+                response = null;
+                body = null;
+            }
+        }
+    }
+
+    /**
+     * Реализация http клиента через {@link java.net.http.HttpClient} из JDK. Клиент согласует HTTP/2 (через ALPN
+     * для https), и одновременные запросы к API мультиплексируются в нескольких соединениях вместо отдельного
+     * соединения на каждый запрос.
+     * <p>
+     * Из {@link ConnectionPoolSettings} используются таймауты, время жизни TLS-сессии, размер тела ответа
+     * и настройки сжатия; размер пула клиент JDK выбирает сам. Ответы обрабатываются в собственном исполнителе
+     * клиента, который останавливается при {@link #close()}.
+     */
+    public static class JdkHttpClient implements HttpClient {
+        private final java.net.http.HttpClient httpClient;
+        private final ExecutorService executor;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Duration requestTimeout;
+        private final int maxResponseBodyBytes;
+        private final ContentEncoding requestEncoding;
+        private final int compressionThreshold;
+        private final int compressionLevel;
+        private final boolean decompressResponses;
+
+        public JdkHttpClient() {
+            this(ConnectionPoolSettings.builder().build());
+        }
+
+        public JdkHttpClient(ConnectionPoolSettings settings) {
+            SSLContext sslContext = SSLContexts.createDefault();
+            sslContext.getClientSessionContext().setSessionTimeout((int) settings.getTlsSessionTimeout().toSeconds());
+            AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "crpt-jdk-http-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            httpClient = java.net.http.HttpClient.newBuilder()
+                    .version(java.net.http.HttpClient.Version.HTTP_2)
+                    .connectTimeout(settings.getConnectTimeout())
+                    .sslContext(sslContext)
+                    .executor(executor)
+                    .build();
+            requestTimeout = settings.getSocketTimeout();
+            maxResponseBodyBytes = settings.getMaxResponseBodyBytes();
+            requestEncoding = settings.getRequestEncoding();
+            compressionThreshold = settings.getCompressionThreshold();
+            compressionLevel = settings.getCompressionLevel();
+            decompressResponses = settings.isDecompressResponses();
+        }
+
+        /**
+         * Синхронная отправка блокирует вызывающий поток без промежуточного {@link CompletableFuture}.
+         */
+        @Override
+        public ClientResponse post(String uri, String body, Map<String, String> headers) {
+            return send(post(uri, new ByteArrayBody(body.getBytes(StandardCharsets.UTF_8)), headers));
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> postAsync(String uri, RequestBody body, Map<String, String> headers) {
+            try {
+                return sendAsync(post(uri, body, headers));
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public ClientResponse get(String uri, Map<String, String> headers) {
+            return send(request(uri, headers).GET().build());
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> getAsync(String uri, Map<String, String> headers) {
+            return sendAsync(request(uri, headers).GET().build());
+        }
+
+        /**
+         * Клиент JDK не раскрывает состояние своих соединений, поэтому занятыми считаются выполняемые запросы,
+         * а ожидающие запросы, свободные соединения и размер пула не поддерживаются
+         * и равны {@link ConnectionPoolStats#UNSUPPORTED}.
+         */
+        @Override
+        public ConnectionPoolStats getPoolStats() {
+            return new ConnectionPoolStats(inFlight.get(), ConnectionPoolStats.UNSUPPORTED,
+                    ConnectionPoolStats.UNSUPPORTED, ConnectionPoolStats.UNSUPPORTED);
+        }
+
+        /**
+         * Останавливает исполнитель клиента. Начиная с Java 21 клиент JDK закрывается явно вместе с соединениями,
+         * в более ранних версиях соединения закрываются, когда клиент становится недостижим.
+         */
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                if (httpClient instanceof AutoCloseable) {
+                    ((AutoCloseable) httpClient).close();
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        private java.net.http.HttpRequest post(String uri, RequestBody body, Map<String, String> headers) {
+            java.net.http.HttpRequest.Builder request = request(uri, headers).header("Content-Type", "application/json");
+            RequestBody encoded = ApacheHttpClient.encode(body, requestEncoding, compressionThreshold, compressionLevel);
+            if (encoded instanceof ApacheHttpClient.EncodedBody) {
+                request.header("Content-Encoding", requestEncoding.getToken());
+            }
+            return request.POST(new StreamingPublisher(encoded)).build();
+        }
+
+        private java.net.http.HttpRequest.Builder request(String uri, Map<String, String> headers) {
+            java.net.http.HttpRequest.Builder request = java.net.http.HttpRequest.newBuilder(URI.create(uri))
+                    .timeout(requestTimeout);
+            if (decompressResponses) {
+                request.header("Accept-Encoding", "gzip, deflate");
+            }
+            if (headers != null) {
+                headers.forEach(request::header);
+            }
+            return request;
+        }
+
+        private ClientResponse send(java.net.http.HttpRequest request) {
+            checkOpen();
+            inFlight.incrementAndGet();
+            try {
+                return httpClient.send(request, this::subscriber).body();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        private CompletableFuture<ClientResponse> sendAsync(java.net.http.HttpRequest request) {
+            checkOpen();
+            inFlight.incrementAndGet();
+            return httpClient.sendAsync(request, this::subscriber)
+                    .thenApply(java.net.http.HttpResponse::body)
+                    .whenComplete((response, e) -> inFlight.decrementAndGet());
+        }
+
+        private void checkOpen() {
+            if (closed.get()) {
+                throw new IllegalStateException("Клиент закрыт");
+            }
+        }
+
+        private java.net.http.HttpResponse.BodySubscriber<ClientResponse> subscriber(java.net.http.HttpResponse.ResponseInfo info) {
+            return new BoundedBodySubscriber(info, maxResponseBodyBytes, decompressResponses);
+        }
+
+        /**
+         * Публикатор тела запроса, который запрашивает у {@link RequestBody} очередную часть только по запросу
+         * подписчика, поэтому в памяти находится не больше частей, чем запросил транспорт.
+         * Повторная подписка, например, при повторе запроса клиентом, получает копию тела.
+         */
+        private static final class StreamingPublisher implements java.net.http.HttpRequest.BodyPublisher {
+            private final RequestBody body;
+            private final AtomicBoolean subscribed = new AtomicBoolean();
+
+            private StreamingPublisher(RequestBody body) {
+                this.body = body;
+            }
+
+            @Override
+            public long contentLength() {
+                return body.getContentLength();
+            }
+
+            @Override
+            public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+                RequestBody source = subscribed.compareAndSet(false, true) ? body : body.copy();
+                if (source == null) {
+                    subscriber.onSubscribe(new Flow.Subscription() {
+                        @Override
+                        public void request(long n) {
+                        }
+
+                        @Override
+                        public void cancel() {
+                        }
+                    });
+                    subscriber.onError(new IOException("Тело запроса нельзя отправить повторно"));
+                    return;
+                }
+                subscriber.onSubscribe(new ChunkSubscription(source, subscriber));
+            }
+        }
+
+        private static final class ChunkSubscription implements Flow.Subscription {
+            private final RequestBody body;
+            private final Flow.Subscriber<? super ByteBuffer> subscriber;
+            private final AtomicLong demand = new AtomicLong();
+            private final AtomicInteger drains = new AtomicInteger();
+            private volatile boolean done;
+
+            private ChunkSubscription(RequestBody body, Flow.Subscriber<? super ByteBuffer> subscriber) {
+                this.body = body;
+                this.subscriber = subscriber;
+            }
+
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancel();
+                    subscriber.onError(new IllegalArgumentException("Запрошено неположительное количество частей"));
+                    return;
+                }
+                demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                done = true;
+            }
+
+            /**
+             * Части выдаются одним потоком: вызов request из onNext только увеличивает спрос.
+             */
+            private void drain() {
+                if (drains.getAndIncrement() != 0) {
+                    return;
+                }
+                do {
+                    while (!done && demand.get() > 0) {
+                        if (!body.whenReady(this::drain)) {
+                            break;
+                        }
+                        ApacheHttpClient.ChunkBuffer chunk = new ApacheHttpClient.ChunkBuffer();
+                        boolean hasNext;
+                        try {
+                            hasNext = body.writeNext(chunk);
+                        } catch (IOException | RuntimeException e) {
+                            done = true;
+                            subscriber.onError(e);
+                            return;
+                        }
+                        // сжатая часть может остаться в буфере кодировщика и не занять спрос
+                        if (chunk.size() > 0) {
+                            demand.decrementAndGet();
+                            subscriber.onNext(chunk.toByteBuffer());
+                        }
+                        if (!hasNext) {
+                            done = true;
+                            subscriber.onComplete();
+                        }
+                    }
+                } while (drains.decrementAndGet() != 0);
+            }
+        }
+
+        /**
+         * Подписчик тела ответа с буфером ограниченного размера: остаток тела вычитывается и отбрасывается.
+         * Части копируются в один растущий буфер, начальный размер которого берётся из Content-Length.
+         */
+        private static final class BoundedBodySubscriber implements java.net.http.HttpResponse.BodySubscriber<ClientResponse> {
+            private static final int INITIAL_CAPACITY = 8 * 1024;
+
+            private final java.net.http.HttpResponse.ResponseInfo info;
+            private final int maxBodyBytes;
+            private final ContentEncoding encoding;
+            private final CompletableFuture<ClientResponse> result = new CompletableFuture<>();
+            private byte[] body;
+            private int size;
+            private boolean truncated;
+
+            private BoundedBodySubscriber(java.net.http.HttpResponse.ResponseInfo info, int maxBodyBytes, boolean decompress) {
+                this.info = info;
+                this.maxBodyBytes = maxBodyBytes;
+                this.encoding = decompress
+                        ? info.headers().firstValue("Content-Encoding").map(ContentEncoding::of).orElse(ContentEncoding.IDENTITY)
+                        : ContentEncoding.IDENTITY;
+                long contentLength = info.headers().firstValueAsLong("Content-Length").orElse(INITIAL_CAPACITY);
+                this.body = new byte[(int) Math.max(0, Math.min(contentLength, maxBodyBytes))];
+            }
+
+            @Override
+            public CompletionStage<ClientResponse> getBody() {
+                return result;
+            }
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(List<ByteBuffer> buffers) {
+                for (ByteBuffer buffer : buffers) {
+                    int accepted = Math.min(buffer.remaining(), maxBodyBytes - size);
+                    if (accepted > 0) {
+                        if (size + accepted > body.length) {
+                            int grown = (int) Math.min(Math.max((long) body.length * 2, size + accepted), maxBodyBytes);
+                            body = Arrays.copyOf(body, grown);
+                        }
+                        buffer.get(body, size, accepted);
+                        size += accepted;
+                    }
+                    truncated |= buffer.hasRemaining();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                result.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                try {
+                    byte[] content = body;
+                    int length = size;
+                    if (encoding != ContentEncoding.IDENTITY && length > 0) {
+                        ByteArrayOutputStream decoded = new ByteArrayOutputStream((int) Math.min((long) length * 4, maxBodyBytes));
+                        truncated |= ApacheHttpClient.BoundedResponseConsumer.decode(content, length, encoding, decoded, maxBodyBytes);
+                        content = decoded.toByteArray();
+                        length = content.length;
+                    }
+                    Charset charset = info.headers().firstValue("Content-Type")
+                            .map(value -> ContentType.parse(value).getCharset())
+                            .orElse(null);
+                    Map<String, String> headers = new HashMap<>();
+                    info.headers().map().forEach((name, values) -> headers.put(name, values.get(0)));
+                    result.complete(new ClientResponse(info.statusCode(),
+                            new String(content, 0, length, charset == null ? StandardCharsets.UTF_8 : charset), headers, truncated));
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Настройки повторных попыток {@link RetryingHttpClient}
+     */
+    @Getter
+    @Builder
+    @ToString
+    public static class RetryPolicy {
+        /**
+         * Максимальное количество попыток, включая первую.
+         */
+        @Builder.Default
+        private final int maxAttempts = 4;
+        @Builder.Default
+        private final Duration baseDelay = Duration.ofMillis(200);
+        @Builder.Default
+        private final Duration maxDelay = Duration.ofSeconds(30);
+        @Builder.Default
+        private final boolean retryOnIoErrors = true;
+        @Builder.Default
+        private final boolean retryOnServerErrors = true;
+        @Builder.Default
+        private final boolean retryOnTooManyRequests = true;
+        /**
+         * Доля повторов от количества исходных запросов. Так как исходные запросы ограничены лимитом,
+         * повторы не превышают этой доли от лимита запросов.
+         */
+        @Builder.Default
+        private final double retryBudgetRatio = 0.1;
+        /**
+         * Запас повторов, доступный сразу и ограничивающий накопление бюджета.
+         */
+        @Builder.Default
+        private final int retryBudgetCapacity = 10;
+        /**
+         * Заголовок ключа идемпотентности, если API его поддерживает. Все попытки запроса отправляются с одним ключом,
+         * поэтому повтор после обрыва соединения во время отправки не создаёт второй документ. Без ключа после ошибок
+         * соединения повторяются только запросы, которые не были отправлены: соединение не установлено.
+         */
+        private final String idempotencyKeyHeader;
+    }
+
+    /**
+     * Повторные попытки запросов поверх другого {@link HttpClient} с экспоненциальной задержкой и полным джиттером.
+     * Каждая повторная попытка получает разрешение у того же {@link RateLimiter} с приоритетом исходного запроса,
+     * а количество повторов ограничено бюджетом из {@link RetryPolicy}.
+     * Повторяются только асинхронные post-запросы с телом, которое можно отправить заново.
+     * При закрытии клиента незавершённые запросы, в том числе ожидающие повтора, завершаются
+     * {@link IllegalStateException}.
+     */
+    public static class RetryingHttpClient implements HttpClient {
+        private static final long BUDGET_UNIT = 1_000_000;
+
+        private final HttpClient delegate;
+        private final RateLimiter rateLimiter;
+        private final RetryPolicy policy;
+        private final ScheduledExecutorService scheduler = daemonScheduler("crpt-retry");
+        private final Set<CompletableFuture<ClientResponse>> pending = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed;
+        private final AtomicLong budget;
+        private final long budgetCapacity;
+        private final long budgetDeposit;
+
+        /**
+         * @param delegate    транспорт, через который выполняются попытки.
+         * @param rateLimiter ограничение запросов, общее с {@link CrptApi}.
+         * @param policy      настройки повторных попыток.
+         */
+        public RetryingHttpClient(HttpClient delegate, RateLimiter rateLimiter, RetryPolicy policy) {
+            this.delegate = delegate;
+            this.rateLimiter = rateLimiter;
+            this.policy = policy;
+            budgetCapacity = policy.getRetryBudgetCapacity() * BUDGET_UNIT;
+            budgetDeposit = (long) (policy.getRetryBudgetRatio() * BUDGET_UNIT);
+            budget = new AtomicLong(budgetCapacity);
+        }
+
+        @Override
+        public ClientResponse post(String uri, String body, Map<String, String> headers) {
+            try {
+                return postAsync(uri, body, headers).join();
+            } catch (CompletionException e) {
+                throw unwrap(e.getCause());
+            }
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> postAsync(String uri, RequestBody body, Map<String, String> headers) {
+            return postAsync(uri, body, headers, Priority.NORMAL);
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> postAsync(String uri, RequestBody body, Map<String, String> headers,
+                                                           Priority priority) {
+            budget.getAndUpdate(balance -> Math.min(budgetCapacity, balance + budgetDeposit));
+            String idempotencyKeyHeader = policy.getIdempotencyKeyHeader();
+            if (idempotencyKeyHeader != null && !headers.containsKey(idempotencyKeyHeader)) {
+                headers = new HashMap<>(headers);
+                headers.put(idempotencyKeyHeader, UUID.randomUUID().toString());
+            }
+            CompletableFuture<ClientResponse> result = new CompletableFuture<>();
+            pending.add(result);
+            result.whenComplete((response, e) -> pending.remove(result));
+            // close мог не застать добавленный запрос
+            if (closed) {
+                result.completeExceptionally(new IllegalStateException("Клиент закрыт"));
+                return result;
+            }
+            attempt(uri, body, headers, priority, 1, result);
+            return result;
+        }
+
+        @Override
+        public ClientResponse get(String uri, Map<String, String> headers) {
+            return delegate.get(uri, headers);
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> getAsync(String uri, Map<String, String> headers) {
+            return delegate.getAsync(uri, headers);
+        }
+
+        @Override
+        public ConnectionPoolStats getPoolStats() {
+            return delegate.getPoolStats();
+        }
+
+        @Override
+        public boolean isAcceptingRequests() {
+            return delegate.isAcceptingRequests();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            scheduler.shutdownNow();
+            for (CompletableFuture<ClientResponse> result : pending) {
+                result.completeExceptionally(new IllegalStateException("Клиент закрыт"));
+            }
+            delegate.close();
+        }
+
+        private void attempt(String uri, RequestBody body, Map<String, String> headers, Priority priority, int attempt,
+                             CompletableFuture<ClientResponse> result) {
+            RequestBody retryBody;
+            CompletableFuture<ClientResponse> request;
+            try {
+                retryBody = body.copy();
+                request = delegate.postAsync(uri, body, headers, priority);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            request.whenComplete((response, e) -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (attempt < policy.getMaxAttempts() && retryBody != null && isRetryable(response, cause)
+                        && withdrawBudget()) {
+                    if (response != null) {
+                        rateLimiter.onResponse(response);
+                    }
+                    delay(backoffNanos(attempt, response))
+                            .thenCompose(ignored -> rateLimiter.consumeAsync(priority))
+                            .whenComplete((ignored, permitError) -> {
+                                if (permitError != null) {
+                                    result.completeExceptionally(permitError);
+                                    return;
+                                }
+                                // исключение в обработчике завершения теряется, и результат не завершился бы
+                                try {
+                                    attempt(uri, retryBody, headers, priority, attempt + 1, result);
+                                } catch (RuntimeException attemptError) {
+                                    result.completeExceptionally(attemptError);
+                                }
+                            });
+                } else if (cause != null) {
+                    result.completeExceptionally(cause);
+                } else {
+                    result.complete(response);
+                }
+            });
+        }
+
+        private boolean isRetryable(ClientResponse response, Throwable cause) {
+            if (cause != null) {
+                return policy.isRetryOnIoErrors() && cause instanceof IOException
+                        && (policy.getIdempotencyKeyHeader() != null || isNotSent(cause));
+            }
+            int statusCode = response.getStatusCode();
+            if (statusCode == 429) {
+                return policy.isRetryOnTooManyRequests();
+            }
+            return statusCode >= 500 && policy.isRetryOnServerErrors();
+        }
+
+        private boolean withdrawBudget() {
+            long before = budget.getAndUpdate(balance -> balance >= BUDGET_UNIT ? balance - BUDGET_UNIT : balance);
+            return before >= BUDGET_UNIT;
+        }
+
+        /**
+         * Полный джиттер: случайная задержка от нуля до экспоненциально растущей границы,
+         * но не меньше указанной сервером в Retry-After.
+         */
+        private long backoffNanos(int attempt, ClientResponse response) {
+            long ceiling = Math.min(policy.getMaxDelay().toNanos(),
+                    policy.getBaseDelay().toNanos() << Math.min(attempt - 1, 30));
+            long backoff = ThreadLocalRandom.current().nextLong(ceiling + 1);
+            String retryAfter = response == null ? null : response.getHeader("Retry-After");
+            return retryAfter == null ? backoff : Math.max(backoff, parseDelayNanos(retryAfter));
+        }
+
+        private CompletableFuture<Void> delay(long nanos) {
+            CompletableFuture<Void> delay = new CompletableFuture<>();
+            try {
+                scheduler.schedule(() -> delay.complete(null), nanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                delay.completeExceptionally(e);
+            }
+            return delay;
+        }
+    }
+
+    /**
+     * Настройки {@link CircuitBreakerHttpClient}
+     */
+    @Getter
+    @Builder
+    @ToString
+    public static class CircuitBreakerSettings {
+        /**
+         * Количество последних запросов, по которым вычисляются доли ошибок и медленных запросов.
+         */
+        @Builder.Default
+        private final int windowSize = 50;
+        /**
+         * Минимальное количество запросов в окне, после которого размыкание возможно.
+         */
+        @Builder.Default
+        private final int minimumCalls = 20;
+        /**
+         * Доля ошибок соединения и ответов 5xx, при которой цепь размыкается.
+         */
+        @Builder.Default
+        private final double failureRateThreshold = 0.5;
+        /**
+         * Доля медленных запросов, при которой цепь размыкается.
+         */
+        @Builder.Default
+        private final double slowCallRateThreshold = 0.8;
+        /**
+         * Запрос дольше этого времени считается медленным.
+         */
+        @Builder.Default
+        private final Duration slowCallDuration = Duration.ofSeconds(5);
+        /**
+         * Время в разомкнутом состоянии до пробных запросов.
+         */
+        @Builder.Default
+        private final Duration openDuration = Duration.ofSeconds(30);
+        /**
+         * Количество пробных запросов в полуразомкнутом состоянии.
+         */
+        @Builder.Default
+        private final int halfOpenCalls = 5;
     }
 
     /**
-     * Создание документа через API Честный знак.
-     *
-     * @param document  данные для документа.
-     * @param signature подпись для документа.
+     * Состояние {@link CircuitBreakerHttpClient}
      */
-    public void createDocument(Document document, String signature) {
-        try {
-            rateLimiter.blockingConsume();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-        Map<String, String> headers = new HashMap<>();
-        headers.put("Signature", signature);
-        httpClient.post(API_ADDRESS + "/lk/documents/create", json.serialize(document), headers);
+    public enum CircuitState {
+        /**
+         * Запросы выполняются, результаты учитываются в окне.
+         */
+        CLOSED,
+        /**
+         * Запросы сразу завершаются {@link CircuitBreakerOpenException}.
+         */
+        OPEN,
+        /**
+         * Выполняется ограниченное количество пробных запросов, по которым цепь замыкается или снова размыкается.
+         */
+        HALF_OPEN
     }
 
     /**
-     * Интерфейс для добавлени абстракции над библиотекой ограничение запросов.
+     * Запрос отклонён без обращения к API, так как транспорт не принимает запросы
      */
-    public interface RateLimiter {
-        void blockingConsume() throws InterruptedException;
+    public static class CircuitBreakerOpenException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public CircuitBreakerOpenException(String message) {
+            super(message);
+        }
     }
 
     /**
-     * Реализация ограничения запросов через библиотеку Bucket4j
+     * Документ из {@link DocumentOutbox} получил окончательный статус отказа или неизвестного результата
      */
-    public static class Bucket4jRateLimiter implements RateLimiter {
-        private final Bucket bucket;
+    @Getter
+    public static class OutboxDeliveryException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-        public Bucket4jRateLimiter(Duration timeLimit, int requestLimit) {
-            bucket = Bucket.builder().addLimit(Bandwidth.classic(requestLimit, Refill.intervally(requestLimit, timeLimit))).build();
-        }
+        /**
+         * Последний ответ 429 или 5xx или null, если последняя попытка завершилась ошибкой отправки.
+         */
+        private final transient ClientResponse lastResponse;
+        private final int attempts;
+        /**
+         * Запрос мог дойти до API, и документ мог быть создан.
+         */
+        private final boolean uncertain;
 
-        @Override
-        public void blockingConsume() throws InterruptedException {
-            bucket.asBlocking().consume(1);
+        public OutboxDeliveryException(String message, Throwable cause, ClientResponse lastResponse, int attempts,
+                                       boolean uncertain) {
+            super(message, cause);
+            this.lastResponse = lastResponse;
+            this.attempts = attempts;
+            this.uncertain = uncertain;
         }
     }
 
     /**
-     * Класс для добавления абстракции над библиотекой HTTP клиента
+     * Снимок состояния {@link CircuitBreakerHttpClient}
      */
     @Getter
     @ToString
     @EqualsAndHashCode
     @AllArgsConstructor
-    private final static class ClientResponse {
-        private final int statusCode;
-        private final String body;
-        private final Map<String, String> headers;
-
-        public Map<String, String> getHeaders() {
-            return new HashMap<>(headers);
-        }
+    public final static class CircuitBreakerStats {
+        private final CircuitState state;
+        /**
+         * Запросы в окне.
+         */
+        private final int bufferedCalls;
+        private final double failureRate;
+        private final double slowCallRate;
+        /**
+         * Запросы, отклонённые без обращения к API, с момента создания.
+         */
+        private final long notPermittedCalls;
     }
 
     /**
-     * Интерфейс для добавления абстракции над библиотекой HTTP клиента
+     * Размыкатель цепи поверх другого {@link HttpClient}. Результаты последних запросов хранятся в кольцевом окне;
+     * когда доля ошибок соединения и ответов 5xx или доля медленных запросов превышает порог, цепь размыкается
+     * и запросы сразу завершаются {@link CircuitBreakerOpenException}. Через
+     * {@link CircuitBreakerSettings#getOpenDuration()} пропускается несколько пробных запросов, по результатам
+     * которых цепь замыкается или размыкается снова.
+     * <p>
+     * Пока цепь разомкнута, {@link #isAcceptingRequests()} возвращает false, и {@link CrptApi} отклоняет документы
+     * до запроса разрешения у {@link RateLimiter}, не расходуя лимит и не ожидая таймаута соединения.
      */
-    public interface HttpClient {
+    public static class CircuitBreakerHttpClient implements HttpClient {
+        private static final byte SUCCESS = 0;
+        private static final byte FAILURE = 1;
+        private static final byte SLOW = 2;
+
+        private final HttpClient delegate;
+        private final CircuitBreakerSettings settings;
+        private final List<BiConsumer<CircuitState, CircuitState>> listeners = new CopyOnWriteArrayList<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final byte[] window;
+        private final LongAdder notPermitted = new LongAdder();
+        private volatile CircuitState state = CircuitState.CLOSED;
+        private volatile long openedAt;
+        private int position;
+        private int buffered;
+        private int failures;
+        private int slowCalls;
+        private int probesStarted;
         /**
-         * Выполнить post HTTP-запрос
-         *
-         * @param uri     адресс запроса.
-         * @param body    тело запроса.
-         * @param headers заголовки запроса.
+         * Номер состояния: результаты запросов, начатых в предыдущем состоянии, не учитываются.
          */
-        ClientResponse post(String uri, String body, Map<String, String> headers);
+        private long generation;
 
         /**
-         * Выполнить get HTTP-запрос
+         * @param delegate транспорт, запросы которого защищает размыкатель.
+         * @param settings пороги и длительности состояний.
+         */
+        public CircuitBreakerHttpClient(HttpClient delegate, CircuitBreakerSettings settings) {
+            this.delegate = delegate;
+            this.settings = settings;
+            this.window = new byte[settings.getWindowSize()];
+        }
+
+        /**
+         * Подписаться на смену состояния. Обработчик вызывается в потоке, завершившем запрос, и не должен блокироваться.
          *
-         * @param uri     адресс запроса.
-         * @param headers заголовки запроса.
+         * @param listener обработчик, получающий прежнее и новое состояние.
          */
-        ClientResponse get(String uri, Map<String, String> headers);
-    }
+        public void onStateChange(BiConsumer<CircuitState, CircuitState> listener) {
+            listeners.add(listener);
+        }
 
-    /**
-     * Реализация http клиента через библиотеку Apache HttpComponents
-     */
-    public static class ApacheHttpClient implements HttpClient {
-        private final CloseableHttpClient httpClient = HttpClients.createDefault();
+        public CircuitState getState() {
+            return state;
+        }
 
-        @Override
-        public ClientResponse post(String uri, String body, Map<String, String> headers) {
-            HttpPost httpPost = new HttpPost(uri);
-            httpPost.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
-            if (headers != null && !headers.isEmpty()) {
-                headers.forEach(httpPost::setHeader);
+        /**
+         * Состояние окна и количество отклонённых запросов.
+         */
+        public CircuitBreakerStats getStats() {
+            lock.lock();
+            try {
+                return new CircuitBreakerStats(state, buffered, rate(failures), rate(slowCalls), notPermitted.sum());
+            } finally {
+                lock.unlock();
             }
+        }
+
+        /**
+         * Отрицательный ответ означает, что вызывающий отклоняет запрос, поэтому он учитывается
+         * в {@link CircuitBreakerStats#getNotPermittedCalls()}. В состоянии пробных запросов цепь не принимает
+         * запросы, когда все пробные запросы уже начаты.
+         */
+        @Override
+        public boolean isAcceptingRequests() {
+            boolean accepting;
+            lock.lock();
             try {
-                return convertApacheHttpResponse(httpClient.execute(httpPost));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                accepting = state == CircuitState.OPEN
+                        ? System.nanoTime() - openedAt >= settings.getOpenDuration().toNanos()
+                        : state != CircuitState.HALF_OPEN || probesStarted < settings.getHalfOpenCalls();
+            } finally {
+                lock.unlock();
+            }
+            if (!accepting) {
+                notPermitted.increment();
+                return false;
             }
+            return delegate.isAcceptingRequests();
+        }
+
+        @Override
+        public ClientResponse post(String uri, String body, Map<String, String> headers) {
+            return await(call(() -> CompletableFuture.completedFuture(delegate.post(uri, body, headers))));
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> postAsync(String uri, RequestBody body, Map<String, String> headers) {
+            return call(() -> delegate.postAsync(uri, body, headers));
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> postAsync(String uri, RequestBody body, Map<String, String> headers,
+                                                           Priority priority) {
+            return call(() -> delegate.postAsync(uri, body, headers, priority));
         }
 
         @Override
         public ClientResponse get(String uri, Map<String, String> headers) {
-            HttpGet httpGet = new HttpGet(uri);
-            if (headers != null && !headers.isEmpty()) {
-                headers.forEach(httpGet::setHeader);
+            return await(call(() -> CompletableFuture.completedFuture(delegate.get(uri, headers))));
+        }
+
+        @Override
+        public CompletableFuture<ClientResponse> getAsync(String uri, Map<String, String> headers) {
+            return call(() -> delegate.getAsync(uri, headers));
+        }
+
+        @Override
+        public ConnectionPoolStats getPoolStats() {
+            return delegate.getPoolStats();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        /**
+         * Отказ размыкателя и исключение транспорта возвращаются завершённым с ошибкой результатом,
+         * а не бросаются: вызывающие, повторяющие запрос из обработчиков завершения, иначе теряют исключение.
+         */
+        private CompletableFuture<ClientResponse> call(Supplier<CompletableFuture<ClientResponse>> request) {
+            long permit = acquire();
+            if (permit < 0) {
+                notPermitted.increment();
+                return CompletableFuture.failedFuture(
+                        new CircuitBreakerOpenException("Цепь разомкнута: запросы к API временно не выполняются"));
             }
+            long start = System.nanoTime();
+            CompletableFuture<ClientResponse> response;
             try {
-                return convertApacheHttpResponse(httpClient.execute(httpGet));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                response = request.get();
+            } catch (RuntimeException e) {
+                record(permit, FAILURE);
+                return CompletableFuture.failedFuture(e);
             }
+            return response.whenComplete((result, e) -> {
+                long elapsed = System.nanoTime() - start;
+                byte outcome = e != null || result.getStatusCode() >= 500 ? FAILURE
+                        : elapsed > settings.getSlowCallDuration().toNanos() ? SLOW : SUCCESS;
+                record(permit, outcome);
+            });
         }
 
-        private ClientResponse convertApacheHttpResponse(HttpResponse response) throws IOException {
-            int statusCode = response.getStatusLine().getStatusCode();
-            String content = response.getEntity().getContent().toString();
-            Map<String, String> responseHeaders = new HashMap<>();
-            for (Header header : response.getAllHeaders()) {
-                responseHeaders.put(header.getName(), header.getValue());
+        /**
+         * @return номер состояния, в котором начат запрос, или -1, если запрос не разрешён.
+         */
+        private long acquire() {
+            CircuitState from = null;
+            lock.lock();
+            try {
+                if (state == CircuitState.OPEN) {
+                    if (System.nanoTime() - openedAt < settings.getOpenDuration().toNanos()) {
+                        return -1;
+                    }
+                    from = transition(CircuitState.HALF_OPEN);
+                }
+                if (state == CircuitState.HALF_OPEN) {
+                    if (probesStarted >= settings.getHalfOpenCalls()) {
+                        return -1;
+                    }
+                    probesStarted++;
+                }
+                return generation;
+            } finally {
+                lock.unlock();
+                notify(from, CircuitState.HALF_OPEN);
+            }
+        }
+
+        private void record(long permit, byte outcome) {
+            CircuitState from = null;
+            CircuitState to = null;
+            lock.lock();
+            try {
+                if (permit != generation) {
+                    return;
+                }
+                if (buffered == window.length) {
+                    forget(window[position]);
+                } else {
+                    buffered++;
+                }
+                window[position] = outcome;
+                position = (position + 1) % window.length;
+                if (outcome == FAILURE) {
+                    failures++;
+                } else if (outcome == SLOW) {
+                    slowCalls++;
+                }
+                boolean exceeded = rate(failures) >= settings.getFailureRateThreshold()
+                        || rate(slowCalls) >= settings.getSlowCallRateThreshold();
+                if (state == CircuitState.HALF_OPEN) {
+                    if (buffered >= settings.getHalfOpenCalls()) {
+                        to = exceeded ? CircuitState.OPEN : CircuitState.CLOSED;
+                    }
+                } else if (exceeded && buffered >= settings.getMinimumCalls()) {
+                    to = CircuitState.OPEN;
+                }
+                if (to != null) {
+                    from = transition(to);
+                }
+            } finally {
+                lock.unlock();
+                notify(from, to);
+            }
+        }
+
+        /**
+         * Смена состояния под блокировкой: окно очищается, а результаты начатых ранее запросов больше не учитываются.
+         *
+         * @return прежнее состояние.
+         */
+        private CircuitState transition(CircuitState to) {
+            CircuitState from = state;
+            state = to;
+            generation++;
+            if (to == CircuitState.OPEN) {
+                openedAt = System.nanoTime();
+            }
+            position = 0;
+            buffered = 0;
+            failures = 0;
+            slowCalls = 0;
+            probesStarted = 0;
+            return from;
+        }
+
+        private void forget(byte outcome) {
+            if (outcome == FAILURE) {
+                failures--;
+            } else if (outcome == SLOW) {
+                slowCalls--;
+            }
+        }
+
+        private double rate(int count) {
+            return buffered == 0 ? 0 : (double) count / buffered;
+        }
+
+        private void notify(CircuitState from, CircuitState to) {
+            if (from != null) {
+                for (BiConsumer<CircuitState, CircuitState> listener : listeners) {
+                    listener.accept(from, to);
+                }
             }
-            return new ClientResponse(statusCode, content, responseHeaders);
         }
     }
 
@@ -189,17 +5063,73 @@ public class CrptApi {
          * @return объект, созданный на основе JSON-строки.
          */
         public abstract <T> T deserialize(String json, Class<T> clazz);
+
+        /**
+         * Тело запроса, в которое документ сериализуется по частям во время отправки.
+         *
+         * @param document документ.
+         * @return тело запроса.
+         */
+        public abstract RequestBody documentBody(Document document);
+
+        /**
+         * Тело запроса, в которое товары документа сериализуются по мере чтения из источника.
+         * Источник читается один раз, поэтому такое тело нельзя повторить.
+         *
+         * @param document документ; поле products не используется.
+         * @param products товары документа.
+         * @return тело запроса.
+         */
+        public abstract RequestBody documentBody(Document document, Iterator<Product> products);
+
+        /**
+         * Разбор ответа на создание документа.
+         *
+         * @param response ответ API.
+         * @return результат создания документа.
+         */
+        public abstract DocumentResult documentResult(ClientResponse response);
+
+        /**
+         * Разбор ответа на запрос информации о документе.
+         *
+         * @param response ответ API.
+         * @return статус документа или null, если его нет в ответе.
+         */
+        public abstract String documentStatus(ClientResponse response);
     }
 
     /**
      * Реализация работы с форматом JSON через библиотеку Jackson
      */
     public static class JacksonSerializer extends JsonSerializer {
-        private final ObjectMapper objectMapper = JsonMapper.builder()
-                .addModule(new JavaTimeModule()).build()
-                .addMixIn(Description.class, SpecificDescription.class)
-                .setDateFormat(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"))
-                .setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
+        private final ProductSerializer productSerializer;
+        private final DocumentSerializer documentSerializer;
+        private final ObjectMapper objectMapper;
+
+        public JacksonSerializer() {
+            this(true);
+        }
+
+        /**
+         * @param cacheDates хранить закодированными недавно записанные даты: у товаров одного документа
+         *                   обычно одни и те же даты производства и сертификата.
+         */
+        public JacksonSerializer(boolean cacheDates) {
+            DateEncoder dates = new DateEncoder(cacheDates);
+            productSerializer = new ProductSerializer(dates);
+            documentSerializer = new DocumentSerializer(productSerializer, dates);
+            objectMapper = JsonMapper.builder()
+                    .addModule(new JavaTimeModule())
+                    .addModule(new SimpleModule("crpt-models")
+                            .addSerializer(Document.class, documentSerializer)
+                            .addSerializer(Product.class, productSerializer)
+                            .addSerializer(Description.class, new DescriptionSerializer()))
+                    .build()
+                    .addMixIn(Description.class, SpecificDescription.class)
+                    .setDateFormat(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"))
+                    .setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
+        }
 
         @Override
         public String serialize(Object o) {
@@ -218,6 +5148,403 @@ public class CrptApi {
                 throw new RuntimeException(e);
             }
         }
+
+        @Override
+        public RequestBody documentBody(Document document) {
+            return new DocumentBody(document, document.getProducts() == null ? null : document.getProducts().iterator(), true);
+        }
+
+        @Override
+        public RequestBody documentBody(Document document, Iterator<Product> products) {
+            return new DocumentBody(document, products, false);
+        }
+
+        /**
+         * Тело ответа читается {@link JsonParser} без построения дерева и без привязки к классам: нужны только
+         * поля value, code, error_message и description верхнего уровня. Тело ошибки не в формате JSON
+         * целиком попадает в описание ошибки.
+         */
+        @Override
+        public DocumentResult documentResult(ClientResponse response) {
+            String body = response.getBody();
+            String documentId = null;
+            String code = null;
+            String errorMessage = null;
+            String description = null;
+            boolean parsed = false;
+            if (body != null && !body.isEmpty()) {
+                try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+                    if (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String field = parser.currentName();
+                            JsonToken value = parser.nextToken();
+                            if (value.isStructStart()) {
+                                parser.skipChildren();
+                            } else if (value != JsonToken.VALUE_NULL) {
+                                switch (field) {
+                                    case "value":
+                                        documentId = parser.getText();
+                                        break;
+                                    case "code":
+                                        code = parser.getText();
+                                        break;
+                                    case "error_message":
+                                        errorMessage = parser.getText();
+                                        break;
+                                    case "description":
+                                        description = parser.getText();
+                                        break;
+                                    default:
+                                        break;
+                                }
+                            }
+                        }
+                        parsed = true;
+                    }
+                } catch (IOException e) {
+                    // тело не в формате JSON или обрезано
+                }
+            }
+            ApiError error = null;
+            if (code != null || errorMessage != null || description != null) {
+                error = new ApiError(code, errorMessage, description);
+            } else if (response.getStatusCode() / 100 != 2) {
+                error = new ApiError(null, null, parsed ? null : body);
+            }
+            return new DocumentResult(response, error == null ? documentId : null, error,
+                    parseServerTiming(response.getHeader("Server-Timing")));
+        }
+
+        /**
+         * Информация о документе приходит объектом или массивом из одного объекта, статус берётся
+         * из поля status верхнего уровня этого объекта.
+         */
+        @Override
+        public String documentStatus(ClientResponse response) {
+            String body = response.getBody();
+            if (body == null || body.isEmpty()) {
+                return null;
+            }
+            try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_ARRAY) {
+                    token = parser.nextToken();
+                }
+                if (token != JsonToken.START_OBJECT) {
+                    return null;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if (value.isStructStart()) {
+                        parser.skipChildren();
+                    } else if (field.equals("status") && value != JsonToken.VALUE_NULL) {
+                        return parser.getText();
+                    }
+                }
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Документ, который пишется через {@link JsonGenerator} частями: сначала поля до списка товаров,
+         * затем товары порциями около {@link #CHUNK_SIZE} байт, затем оставшиеся поля.
+         * Пиковое потребление памяти не зависит от количества товаров.
+         */
+        private final class DocumentBody implements RequestBody {
+            private static final int CHUNK_SIZE = 16 * 1024;
+
+            private final Document document;
+            private final Iterator<Product> products;
+            private final boolean repeatable;
+            private final Target target = new Target();
+            private JsonGenerator generator;
+
+            private DocumentBody(Document document, Iterator<Product> products, boolean repeatable) {
+                this.document = document;
+                this.products = products;
+                this.repeatable = repeatable;
+            }
+
+            @Override
+            public boolean writeNext(OutputStream out) throws IOException {
+                target.out = out;
+                target.written = 0;
+                if (generator == null) {
+                    generator = objectMapper.createGenerator(target);
+                    generator.writeStartObject(document);
+                    documentSerializer.writeFieldsBeforeProducts(document, generator);
+                    generator.writeFieldName(DocumentSerializer.PRODUCTS);
+                    if (products == null) {
+                        generator.writeNull();
+                    } else {
+                        generator.writeStartArray();
+                    }
+                } else if (products != null && products.hasNext()) {
+                    while (products.hasNext() && target.written + generator.getOutputBuffered() < CHUNK_SIZE) {
+                        productSerializer.write(products.next(), generator);
+                    }
+                }
+                if (products == null || !products.hasNext()) {
+                    if (products != null) {
+                        generator.writeEndArray();
+                    }
+                    documentSerializer.writeFieldsAfterProducts(document, generator);
+                    generator.writeEndObject();
+                    generator.close();
+                    return false;
+                }
+                generator.flush();
+                return true;
+            }
+
+            @Override
+            public long getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public RequestBody copy() {
+                return repeatable ? documentBody(document) : null;
+            }
+        }
+
+        /**
+         * Сериализатор документа без рефлексии: поля пишутся в фиксированном порядке с заранее закодированными
+         * именами. Порядок и имена совпадают с тем, что Jackson получает из полей модели со стратегией SNAKE_CASE.
+         */
+        private static final class DocumentSerializer extends StdSerializer<Document> {
+            private static final long serialVersionUID = 1L;
+
+            private static final SerializedString DESCRIPTION = new SerializedString("description");
+            private static final SerializedString DOC_ID = new SerializedString("doc_id");
+            private static final SerializedString DOC_STATUS = new SerializedString("doc_status");
+            private static final SerializedString DOC_TYPE = new SerializedString("doc_type");
+            private static final SerializedString IMPORT_REQUEST = new SerializedString("import_request");
+            private static final SerializedString OWNER_INN = new SerializedString("owner_inn");
+            private static final SerializedString PARTICIPANT_INN = new SerializedString("participant_inn");
+            private static final SerializedString PRODUCER_INN = new SerializedString("producer_inn");
+            private static final SerializedString PRODUCTION_DATE = new SerializedString("production_date");
+            private static final SerializedString PRODUCTION_TYPE = new SerializedString("production_type");
+            private static final SerializedString PRODUCTS = new SerializedString("products");
+            private static final SerializedString REG_DATE = new SerializedString("reg_date");
+            private static final SerializedString REG_NUMBER = new SerializedString("reg_number");
+
+            private final ProductSerializer products;
+            private final DateEncoder dates;
+
+            private DocumentSerializer(ProductSerializer products, DateEncoder dates) {
+                super(Document.class);
+                this.products = products;
+                this.dates = dates;
+            }
+
+            @Override
+            public void serialize(Document document, JsonGenerator generator, SerializerProvider provider) throws IOException {
+                generator.writeStartObject(document);
+                writeFieldsBeforeProducts(document, generator);
+                generator.writeFieldName(PRODUCTS);
+                if (document.getProducts() == null) {
+                    generator.writeNull();
+                } else {
+                    generator.writeStartArray();
+                    for (Product product : document.getProducts()) {
+                        products.write(product, generator);
+                    }
+                    generator.writeEndArray();
+                }
+                writeFieldsAfterProducts(document, generator);
+                generator.writeEndObject();
+            }
+
+            private void writeFieldsBeforeProducts(Document document, JsonGenerator generator) throws IOException {
+                generator.writeFieldName(DESCRIPTION);
+                DescriptionSerializer.write(document.getDescription(), generator);
+                writeString(generator, DOC_ID, document.getDocId());
+                writeString(generator, DOC_STATUS, document.getDocStatus());
+                writeString(generator, DOC_TYPE, document.getDocType());
+                generator.writeFieldName(IMPORT_REQUEST);
+                generator.writeBoolean(document.isImportRequest());
+                writeString(generator, OWNER_INN, document.getOwnerInn());
+                writeString(generator, PARTICIPANT_INN, document.getParticipantInn());
+                writeString(generator, PRODUCER_INN, document.getProducerInn());
+                dates.write(generator, PRODUCTION_DATE, document.getProductionDate());
+                writeString(generator, PRODUCTION_TYPE, document.getProductionType());
+            }
+
+            private void writeFieldsAfterProducts(Document document, JsonGenerator generator) throws IOException {
+                dates.write(generator, REG_DATE, document.getRegDate());
+                writeString(generator, REG_NUMBER, document.getRegNumber());
+            }
+        }
+
+        private static final class ProductSerializer extends StdSerializer<Product> {
+            private static final long serialVersionUID = 1L;
+
+            private static final SerializedString CERTIFICATE_DOCUMENT = new SerializedString("certificate_document");
+            private static final SerializedString CERTIFICATE_DOCUMENT_DATE = new SerializedString("certificate_document_date");
+            private static final SerializedString CERTIFICATE_DOCUMENT_NUMBER = new SerializedString("certificate_document_number");
+            private static final SerializedString OWNER_INN = new SerializedString("owner_inn");
+            private static final SerializedString PRODUCER_INN = new SerializedString("producer_inn");
+            private static final SerializedString PRODUCTION_DATE = new SerializedString("production_date");
+            private static final SerializedString TNVED_CODE = new SerializedString("tnved_code");
+            private static final SerializedString UIT_CODE = new SerializedString("uit_code");
+            private static final SerializedString UITU_CODE = new SerializedString("uitu_code");
+
+            private final DateEncoder dates;
+
+            private ProductSerializer(DateEncoder dates) {
+                super(Product.class);
+                this.dates = dates;
+            }
+
+            @Override
+            public void serialize(Product product, JsonGenerator generator, SerializerProvider provider) throws IOException {
+                write(product, generator);
+            }
+
+            private void write(Product product, JsonGenerator generator) throws IOException {
+                if (product == null) {
+                    generator.writeNull();
+                    return;
+                }
+                generator.writeStartObject(product);
+                writeString(generator, CERTIFICATE_DOCUMENT, product.getCertificateDocument());
+                dates.write(generator, CERTIFICATE_DOCUMENT_DATE, product.getCertificateDocumentDate());
+                writeString(generator, CERTIFICATE_DOCUMENT_NUMBER, product.getCertificateDocumentNumber());
+                writeString(generator, OWNER_INN, product.getOwnerInn());
+                writeString(generator, PRODUCER_INN, product.getProducerInn());
+                dates.write(generator, PRODUCTION_DATE, product.getProductionDate());
+                writeString(generator, TNVED_CODE, product.getTnvedCode());
+                writeString(generator, UIT_CODE, product.getUitCode());
+                writeString(generator, UITU_CODE, product.getUituCode());
+                generator.writeEndObject();
+            }
+        }
+
+        /**
+         * Имя поля в lowerCamel, как задаёт {@link SpecificDescription}.
+         */
+        private static final class DescriptionSerializer extends StdSerializer<Description> {
+            private static final long serialVersionUID = 1L;
+
+            private static final SerializedString PARTICIPANT_INN = new SerializedString("participantInn");
+
+            private DescriptionSerializer() {
+                super(Description.class);
+            }
+
+            @Override
+            public void serialize(Description description, JsonGenerator generator, SerializerProvider provider) throws IOException {
+                write(description, generator);
+            }
+
+            private static void write(Description description, JsonGenerator generator) throws IOException {
+                if (description == null) {
+                    generator.writeNull();
+                    return;
+                }
+                generator.writeStartObject(description);
+                writeString(generator, PARTICIPANT_INN, description.getParticipantInn());
+                generator.writeEndObject();
+            }
+        }
+
+        private static void writeString(JsonGenerator generator, SerializedString name, String value) throws IOException {
+            generator.writeFieldName(name);
+            if (value == null) {
+                generator.writeNull();
+            } else {
+                generator.writeString(value);
+            }
+        }
+
+        /**
+         * Запись {@link LocalDate} в формате yyyy-MM-dd: цифры пишутся в массив символов потока и копируются
+         * в буфер генератора без промежуточных строк. Годы вне 0000-9999 пишутся через {@link LocalDate#toString()},
+         * как и в JavaTimeModule.
+         * Кэш небольшого размера с прямым отображением хранит даты уже закодированными в UTF-8, поэтому повторяющаяся
+         * дата копируется в буфер одним массивом. Записи кэша неизменяемы, поэтому гонки при замене безопасны.
+         */
+        private static final class DateEncoder {
+            private static final int CACHE_SIZE = 64;
+            private static final ThreadLocal<char[]> DIGITS = ThreadLocal.withInitial(() -> new char[10]);
+
+            private final CachedDate[] cache;
+
+            private DateEncoder(boolean cacheDates) {
+                cache = cacheDates ? new CachedDate[CACHE_SIZE] : null;
+            }
+
+            private void write(JsonGenerator generator, SerializedString name, LocalDate value) throws IOException {
+                generator.writeFieldName(name);
+                if (value == null) {
+                    generator.writeNull();
+                    return;
+                }
+                int year = value.getYear();
+                if (year < 0 || year > 9999) {
+                    generator.writeString(value.toString());
+                    return;
+                }
+                if (cache == null) {
+                    generator.writeString(encode(value, year), 0, 10);
+                    return;
+                }
+                int index = (int) (value.toEpochDay() & (CACHE_SIZE - 1));
+                CachedDate cached = cache[index];
+                if (cached == null || !cached.date.equals(value)) {
+                    cached = new CachedDate(value, new SerializedString(new String(encode(value, year), 0, 10)));
+                    cache[index] = cached;
+                }
+                generator.writeString(cached.encoded);
+            }
+
+            private static char[] encode(LocalDate value, int year) {
+                char[] digits = DIGITS.get();
+                digits[0] = (char) ('0' + year / 1000);
+                digits[1] = (char) ('0' + year / 100 % 10);
+                digits[2] = (char) ('0' + year / 10 % 10);
+                digits[3] = (char) ('0' + year % 10);
+                digits[4] = '-';
+                int month = value.getMonthValue();
+                digits[5] = (char) ('0' + month / 10);
+                digits[6] = (char) ('0' + month % 10);
+                digits[7] = '-';
+                int day = value.getDayOfMonth();
+                digits[8] = (char) ('0' + day / 10);
+                digits[9] = (char) ('0' + day % 10);
+                return digits;
+            }
+
+            @AllArgsConstructor
+            private static final class CachedDate {
+                private final LocalDate date;
+                private final SerializedString encoded;
+            }
+        }
+
+        /**
+         * Поток, перенаправляющий запись генератора в поток текущей части тела.
+         */
+        private static final class Target extends OutputStream {
+            private OutputStream out;
+            private long written;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                written += len;
+            }
+        }
     }
 
     /**
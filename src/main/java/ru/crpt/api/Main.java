@@ -8,7 +8,6 @@ import java.util.List;
 
 public class Main {
     public static void main(String[] args) throws InterruptedException, IOException {
-        CrptApi crptApi = new CrptApi(Duration.ofSeconds(10), 2);
         List<CrptApi.Product> products = new ArrayList<>();
         CrptApi.Product product = new CrptApi.Product.ProductBuilder()
                 .certificateDocument("string")
@@ -37,6 +36,8 @@ public class Main {
                 .regDate(LocalDate.parse("2020-01-23"))
                 .regNumber("string")
                 .build();
-        crptApi.createDocument(document, "sign");
+        try (CrptApi crptApi = new CrptApi(Duration.ofSeconds(10), 2)) {
+            crptApi.createDocument(document, "sign");
+        }
     }
 }
@@ -0,0 +1,115 @@
+package ru.crpt.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Результаты повторных попыток, размыкателя цепи и журнала исходящих документов завершаются,
+ * а не остаются ожидающими, когда транспорт отказывает или компонент закрывается.
+ */
+class CompletionTest {
+    private static final String URI = "http://localhost/api/v3/lk/documents/create";
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void retryingClientFailsPendingRetryOnClose() throws Exception {
+        StubHttpClient transport = new StubHttpClient(call -> StubHttpClient.respond(503));
+        CrptApi.RetryingHttpClient client = new CrptApi.RetryingHttpClient(transport, limiter(),
+                CrptApi.RetryPolicy.builder().baseDelay(Duration.ofMinutes(1)).maxDelay(Duration.ofMinutes(1)).build());
+        CompletableFuture<CrptApi.ClientResponse> response = client.postAsync(URI, body(), Map.of());
+        assertEquals(1, transport.getCalls());
+
+        client.close();
+
+        assertInstanceOf(IllegalStateException.class, failure(response));
+    }
+
+    @Test
+    void retryingClientCompletesWhenCircuitOpensBetweenAttempts() throws Exception {
+        StubHttpClient transport = new StubHttpClient(call -> StubHttpClient.respond(503));
+        CrptApi.CircuitBreakerHttpClient breaker = new CrptApi.CircuitBreakerHttpClient(transport,
+                CrptApi.CircuitBreakerSettings.builder().windowSize(2).minimumCalls(2).build());
+        try (CrptApi.RetryingHttpClient client = new CrptApi.RetryingHttpClient(breaker, limiter(),
+                CrptApi.RetryPolicy.builder().baseDelay(Duration.ofMillis(1)).maxDelay(Duration.ofMillis(1)).build())) {
+            CompletableFuture<CrptApi.ClientResponse> response = client.postAsync(URI, body(), Map.of());
+
+            assertInstanceOf(CrptApi.CircuitBreakerOpenException.class, failure(response));
+            assertEquals(2, transport.getCalls());
+        }
+    }
+
+    @Test
+    void outboxKeepsSendingAfterTransportThrows() throws Exception {
+        StubHttpClient transport = new StubHttpClient(call -> {
+            if (call == 1) {
+                throw new IllegalStateException("транспорт не готов");
+            }
+            return StubHttpClient.respond(200);
+        });
+        try (CrptApi api = new CrptApi(transport, limiter())) {
+            CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(api, settings(10));
+
+            CrptApi.DocumentResult result = outbox.enqueue(StubHttpClient.document("1"), "signature")
+                    .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            assertEquals("id", result.getDocumentId());
+            assertEquals(2, transport.getCalls());
+            assertTimeoutPreemptively(Duration.ofSeconds(TIMEOUT_SECONDS), outbox::close);
+        }
+    }
+
+    @Test
+    void outboxGivesUpAfterMaxAttempts() throws Exception {
+        StubHttpClient transport = new StubHttpClient(call -> StubHttpClient.respond(503));
+        try (CrptApi api = new CrptApi(transport, limiter())) {
+            CrptApi.DocumentOutbox outbox = new CrptApi.DocumentOutbox(api, settings(3));
+
+            Throwable failure = failure(outbox.enqueue(StubHttpClient.document("1"), "signature"));
+
+            CrptApi.OutboxDeliveryException delivery = assertInstanceOf(CrptApi.OutboxDeliveryException.class, failure);
+            assertEquals(3, delivery.getAttempts());
+            assertEquals(503, delivery.getLastResponse().getStatusCode());
+            assertEquals(0, outbox.getPendingCount());
+            assertTimeoutPreemptively(Duration.ofSeconds(TIMEOUT_SECONDS), outbox::close);
+        }
+    }
+
+    private CrptApi.OutboxSettings settings(int maxAttempts) {
+        return CrptApi.OutboxSettings.builder()
+                .directory(directory)
+                .segmentSize(64 * 1024)
+                .retryDelay(Duration.ofMillis(1))
+                .maxAttempts(maxAttempts)
+                .build();
+    }
+
+    private static CrptApi.RateLimiter limiter() {
+        return new CrptApi.Bucket4jRateLimiter(Duration.ofSeconds(1), 1000);
+    }
+
+    private static CrptApi.RequestBody body() {
+        return new CrptApi.ByteArrayBody("{}".getBytes());
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(future.isCompletedExceptionally());
+        return e.getCause();
+    }
+}
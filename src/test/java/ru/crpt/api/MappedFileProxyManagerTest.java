@@ -0,0 +1,73 @@
+package ru.crpt.api;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class MappedFileProxyManagerTest {
+    private static final Path PROCESS_MAPS = Path.of("/proc/self/maps");
+    private static final Duration TIME_LIMIT = Duration.ofMinutes(1);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void instancesSharingBucketFileShareLimit() throws IOException {
+        try (CrptApi.MappedFileProxyManager firstStore = new CrptApi.MappedFileProxyManager(directory);
+             CrptApi.MappedFileProxyManager secondStore = new CrptApi.MappedFileProxyManager(directory);
+             CrptApi first = new CrptApi(new StubHttpClient(call -> StubHttpClient.respond(200)),
+                     new CrptApi.DistributedRateLimiter(firstStore, "account", TIME_LIMIT, 3));
+             CrptApi second = new CrptApi(new StubHttpClient(call -> StubHttpClient.respond(200)),
+                     new CrptApi.DistributedRateLimiter(secondStore, "account", TIME_LIMIT, 3))) {
+            first.createDocument(StubHttpClient.document("1"), "signature");
+            second.createDocument(StubHttpClient.document("2"), "signature");
+
+            assertEquals(1, first.getRateLimiterStats().getAvailableTokens());
+            assertEquals(1, second.getRateLimiterStats().getAvailableTokens());
+
+            first.createDocument(StubHttpClient.document("3"), "signature");
+
+            assertEquals(0, second.getRateLimiterStats().getAvailableTokens());
+        }
+    }
+
+    @Test
+    void closeUnmapsBucketFileAfterLastInstance() throws IOException {
+        assumeTrue(Files.isReadable(PROCESS_MAPS), "нужен /proc/self/maps");
+        CrptApi.MappedFileProxyManager firstStore = new CrptApi.MappedFileProxyManager(directory);
+        CrptApi.MappedFileProxyManager secondStore = new CrptApi.MappedFileProxyManager(directory);
+        new CrptApi.DistributedRateLimiter(firstStore, "account", TIME_LIMIT, 3).consumeAsync().join();
+        new CrptApi.DistributedRateLimiter(secondStore, "account", TIME_LIMIT, 3).consumeAsync().join();
+        Path file = directory.resolve("account.bucket").toRealPath();
+        assertTrue(isMapped(file));
+
+        firstStore.close();
+
+        assertTrue(isMapped(file), "файл используется вторым экземпляром");
+        assertThrows(IllegalStateException.class, () -> firstStore.removeProxy("account"));
+
+        secondStore.close();
+
+        assertFalse(isMapped(file));
+        try (CrptApi.MappedFileProxyManager reopened = new CrptApi.MappedFileProxyManager(directory)) {
+            CrptApi.DistributedRateLimiter limiter = new CrptApi.DistributedRateLimiter(reopened, "account", TIME_LIMIT, 3);
+            assertEquals(1, limiter.getStats().getAvailableTokens(), "состояние корзины сохранено в файле");
+        }
+    }
+
+    private static boolean isMapped(Path file) throws IOException {
+        try (var lines = Files.lines(PROCESS_MAPS)) {
+            return lines.anyMatch(line -> line.endsWith(" " + file));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ru.crpt.api;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Транспорт без сети: ответ на каждый POST-запрос выбирается по его номеру.
+ */
+final class StubHttpClient implements CrptApi.HttpClient {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final IntFunction<CompletableFuture<CrptApi.ClientResponse>> responses;
+
+    /**
+     * @param responses ответ по номеру запроса, начиная с 1; может бросить исключение вместо ответа.
+     */
+    StubHttpClient(IntFunction<CompletableFuture<CrptApi.ClientResponse>> responses) {
+        this.responses = responses;
+    }
+
+    static CompletableFuture<CrptApi.ClientResponse> respond(int statusCode) {
+        return CompletableFuture.completedFuture(
+                new CrptApi.ClientResponse(statusCode, "{\"value\":\"id\"}", Map.of(), false));
+    }
+
+    static CrptApi.Document document(String docId) {
+        return CrptApi.Document.builder()
+                .description(new CrptApi.Description("inn"))
+                .docId(docId)
+                .docType("LP_INTRODUCE_GOODS")
+                .ownerInn("inn")
+                .productionDate(LocalDate.of(2020, 1, 23))
+                .products(List.of())
+                .build();
+    }
+
+    int getCalls() {
+        return calls.get();
+    }
+
+    @Override
+    public CrptApi.ClientResponse post(String uri, String body, Map<String, String> headers) {
+        return postAsync(uri, body, headers).join();
+    }
+
+    @Override
+    public CompletableFuture<CrptApi.ClientResponse> postAsync(String uri, CrptApi.RequestBody body,
+                                                               Map<String, String> headers) {
+        return responses.apply(calls.incrementAndGet());
+    }
+
+    @Override
+    public CrptApi.ClientResponse get(String uri, Map<String, String> headers) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+}